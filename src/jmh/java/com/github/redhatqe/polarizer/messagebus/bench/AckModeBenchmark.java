@@ -0,0 +1,72 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.github.redhatqe.polarizer.messagebus.*;
+import com.github.redhatqe.polarizer.messagebus.config.AckOpts;
+import com.github.redhatqe.polarizer.messagebus.config.BrokerConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Listener throughput under each ack mode.  The handler does no work of its own, so the run is dominated by the
+ * per-message cost of consuming, and acknowledging, each message.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=AckModeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(AckModeBenchmark.BATCH)
+public class AckModeBenchmark {
+    static final int BATCH = 2000;
+
+    @Param({"auto", "dups-ok", "optimized", "client", "batch"})
+    public String ackMode;
+
+    @Param({"100"})
+    public int ackBatch;
+
+    @Param({"tcp"})
+    public String transport;
+
+    private EmbeddedBroker broker;
+    private CIBusListener<DefaultResult> listener;
+    private CIBusPublisher publisher;
+    private JMSMessageOptions opts;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Over vm:// an ack is just a method call, so use a socket to see what each ack round trip costs
+        String url = this.transport.equals("tcp") ? "tcp://localhost:61718" : null;
+        this.broker = new EmbeddedBroker("ack-bench", url);
+        BrokerConfig cfg = this.broker.config();
+        cfg.getBrokers().get("ci").setAck(new AckOpts(AckOpts.Mode.fromName(this.ackMode), this.ackBatch, 1000L));
+
+        this.listener = new CIBusListener<>(IMessageListener.defaultHandler(), cfg);
+        this.listener.tapIntoMessageBus("", this.listener.createListener(this.listener.messageParser()));
+
+        this.publisher = new CIBusPublisher(this.broker.config());
+        this.publisher.setPooled(true);
+        this.opts = new JMSMessageOptions("bench");
+        this.body = "{ \"status\": \"passed\", \"testrun-url\": \"https://polarion/testrun/1\" }";
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        this.listener.close();
+        ProducerPool.closeAll();
+        this.broker.close();
+    }
+
+    @Benchmark
+    public long publishAndHandle() {
+        long target = this.listener.getMetrics().getHandled() + BATCH;
+        for (int i = 0; i < BATCH; i++)
+            this.publisher.sendMessage(this.body, this.broker.getUrl(), this.opts);
+        while (this.listener.getMetrics().getHandled() < target)
+            LockSupport.parkNanos(100000);
+        return target;
+    }
+}
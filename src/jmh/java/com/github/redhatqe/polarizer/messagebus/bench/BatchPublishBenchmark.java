@@ -0,0 +1,65 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.github.redhatqe.polarizer.messagebus.*;
+import com.github.redhatqe.polarizer.messagebus.config.BatchOpts;
+import com.github.redhatqe.polarizer.messagebus.utils.Tuple;
+import org.openjdk.jmh.annotations.*;
+
+import javax.jms.DeliveryMode;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Publish throughput of persistent messages, sent one sendMessage at a time or with sendBatch.  A persistent send
+ * outside a transaction waits for the broker to answer, so sendMessage pays a round trip per message, while sendBatch
+ * only pays one per commit.  The embedded broker keeps nothing on disk, so against a real broker, whose store syncs
+ * on every answer, the gap is wider still.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=BatchPublishBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(BatchPublishBenchmark.MESSAGES)
+public class BatchPublishBenchmark {
+    static final int MESSAGES = 2000;
+
+    // 0 sends each message with its own sendMessage
+    @Param({"0", "1", "10", "100", "500"})
+    public int batchSize;
+
+    private EmbeddedBroker broker;
+    private CIBusPublisher publisher;
+    private JMSMessageOptions opts;
+    private List<String> bodies;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.broker = new EmbeddedBroker("batch-bench", "tcp://localhost:61720");
+        this.publisher = new CIBusPublisher(this.broker.config());
+        this.publisher.setPooled(true);
+        this.opts = new JMSMessageOptions("bench").setDeliveryMode(DeliveryMode.PERSISTENT);
+        String body = "{ \"status\": \"passed\", \"testrun-url\": \"https://polarion/testrun/1\" }";
+        this.bodies = Collections.nCopies(MESSAGES, body);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        ProducerPool.closeAll();
+        this.broker.close();
+    }
+
+    @Benchmark
+    public int publish() {
+        if (this.batchSize == 0) {
+            for (String body : this.bodies)
+                this.publisher.sendMessage(body, this.broker.getUrl(), this.opts);
+            return MESSAGES;
+        }
+        BatchOpts batch = new BatchOpts(this.batchSize, 60000L, 0);
+        Stream<Tuple<String, JMSMessageOptions>> messages = this.bodies.stream().map(b -> new Tuple<>(b, this.opts));
+        return this.publisher.sendBatch(messages, this.broker.getUrl(), batch).getCommitted();
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.BodyPredicate;
+import com.github.redhatqe.polarizer.messagebus.MessageConverter;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.openjdk.jmh.annotations.*;
+
+import javax.jms.JMSException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a message that a handler's prefilter throws away costs the listener, against parsing its body.  The predicates
+ * never match the xunit importer body, so each one scans the whole of it, which is the worst case.  The message is
+ * marshalled as it would be on the wire, so bytes scans it the way the listener does, while text scans the decoded
+ * String.
+ *
+ * Run with -prof gc to see that the scans allocate nothing: ./gradlew jmh -PjmhInclude=BodyPrefilterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BodyPrefilterBenchmark {
+    // about 140 bytes per testcase
+    @Param({"10", "1000"})
+    public int testcases;
+
+    private ActiveMQTextMessage msg;
+    private String text;
+    private BodyPredicate field;
+    private BodyPredicate contains;
+
+    @Setup(Level.Trial)
+    public void setup() throws JMSException {
+        this.text = CompressionBenchmark.xunitBody(this.testcases);
+        this.msg = new ActiveMQTextMessage();
+        this.msg.setText(this.text);
+        this.msg.storeContent();
+        this.field = BodyPredicate.fieldEquals("testsuite[].testcase[].status", "error");
+        this.contains = BodyPredicate.contains("project/RHEL7");
+    }
+
+    @Benchmark
+    public Boolean fieldEqualsBytes() throws JMSException {
+        return this.field.test(this.msg);
+    }
+
+    @Benchmark
+    public Boolean fieldEqualsText() {
+        return this.field.test(this.text);
+    }
+
+    @Benchmark
+    public Boolean containsBytes() throws JMSException {
+        return this.contains.test(this.msg);
+    }
+
+    @Benchmark
+    public ObjectNode parse() throws JMSException {
+        return MessageConverter.toNode(this.msg);
+    }
+}
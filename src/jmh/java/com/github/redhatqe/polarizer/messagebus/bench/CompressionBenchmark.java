@@ -0,0 +1,73 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.redhatqe.polarizer.messagebus.PayloadCodec;
+import com.github.redhatqe.polarizer.messagebus.config.CompressionOpts;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of compressing an xunit importer body on the publisher, and of decompressing and parsing it on the listener,
+ * for each codec.  The size on the wire of each codec is printed during setup, so the two can be weighed against each
+ * other: eg deflate at level 1 compresses faster than gzip at level 6, for a slightly bigger body.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=CompressionBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Param({"none", "gzip", "deflate"})
+    public String codec;
+
+    // about 140 bytes per testcase
+    @Param({"100", "10000"})
+    public int testcases;
+
+    private CompressionOpts.Codec c;
+    private String body;
+    private byte[] wire;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.c = CompressionOpts.Codec.fromName(this.codec);
+        this.body = xunitBody(this.testcases);
+        this.wire = this.encode();
+        System.out.printf("%n%s: %d chars -> %d bytes on the wire (%.1f%%)%n", this.codec, this.body.length(),
+                this.wire.length, 100.0 * this.wire.length / this.body.length());
+    }
+
+    static String xunitBody(int testcases) {
+        StringBuilder sb = new StringBuilder("{ \"testsuites\": { \"properties\": { \"polarion-project-id\": \"RHEL6\" },");
+        sb.append(" \"testsuite\": [ { \"name\": \"rhsm-qe\", \"testcase\": [");
+        for (int i = 0; i < testcases; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(String.format("{ \"name\": \"testMethod%d\", \"classname\": \"rhsm.cli.tests.RegisterTests\", " +
+                    "\"time\": \"%d.%02d\", \"status\": \"%s\", \"polarion-id\": \"RHEL6-%d\" }",
+                    i, i % 97, i % 100, i % 7 == 0 ? "failed" : "passed", 10000 + i));
+        }
+        return sb.append("] } ] } }").toString();
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        if (this.c == CompressionOpts.Codec.NONE)
+            return this.body.getBytes("UTF-8");
+        return PayloadCodec.compress(this.body, this.c, this.c.getDefaultLevel());
+    }
+
+    @Benchmark
+    public JsonNode decode() throws IOException {
+        try (InputStream is = PayloadCodec.decompress(new ByteArrayInputStream(this.wire), this.c)) {
+            return mapper.readTree(is);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.*;
+import com.github.redhatqe.polarizer.messagebus.config.BrokerConfig;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Throughput of a consumer group as it grows from 1 to 8 processes.
+ *
+ * JMH forks one JVM per trial, so it can't measure several processes sharing a queue.  Instead this starts an embedded
+ * broker on a tcp port, launches N member JVMs that join the same consumer group, publishes a fixed number of messages
+ * to the virtual topic, and times how long the group takes to handle all of them.  Each member burns a fixed amount of
+ * CPU per message, so the numbers only scale if the host has the cores for it.
+ *
+ * Run with: ./gradlew consumerGroupScaling [-PgroupArgs="messages work processes..."]
+ */
+public class ConsumerGroupScaling {
+    private static final String GROUP = "scaling";
+    private static final Long IDLE = 2000L;
+    private static final Long FIRST_MESSAGE = 30000L;
+
+    public static void main(String[] args) throws Exception {
+        Integer messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Long work = args.length > 1 ? Long.parseLong(args[1]) : 100000L;
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 2; i < args.length; i++)
+            sizes.add(Integer.parseInt(args[i]));
+        if (sizes.isEmpty())
+            sizes.addAll(Arrays.asList(1, 2, 4, 8));
+
+        System.out.println(String.format("%-10s %12s %12s", "processes", "msgs/sec", "imbalance"));
+        for (Integer size : sizes) {
+            try (EmbeddedBroker broker = new EmbeddedBroker("group-scaling", "tcp://localhost:61717")) {
+                System.out.println(run(broker, size, messages, work));
+            }
+        }
+    }
+
+    private static String run(EmbeddedBroker broker, Integer processes, Integer messages, Long work) throws Exception {
+        List<Process> members = new ArrayList<>();
+        List<BufferedReader> outputs = new ArrayList<>();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int i = 0; i < processes; i++) {
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    Member.class.getName(), broker.getUrl(), work.toString());
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process p = pb.start();
+            members.add(p);
+            outputs.add(new BufferedReader(new InputStreamReader(p.getInputStream())));
+        }
+        // Messages sent to the virtual topic before the group's queue exists would be lost
+        for (BufferedReader out : outputs)
+            await(out, "READY");
+
+        CIBusPublisher publisher = new CIBusPublisher(broker.config());
+        publisher.setPooled(true);
+        JMSMessageOptions opts = new JMSMessageOptions("bench");
+        String body = "{ \"status\": \"passed\", \"testrun-url\": \"https://polarion/testrun/1\" }";
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < messages; i++)
+            publisher.sendMessage(body, broker.getUrl(), opts);
+
+        long finished = started;
+        long total = 0;
+        long most = 0;
+        for (BufferedReader out : outputs) {
+            String[] done = await(out, "DONE").split(" ");
+            long handled = Long.parseLong(done[1]);
+            total += handled;
+            most = Math.max(most, handled);
+            finished = Math.max(finished, Long.parseLong(done[2]));
+        }
+        for (Process p : members)
+            p.waitFor();
+        ProducerPool.closeAll();
+
+        if (total != messages)
+            return String.format("%-10d lost messages: handled %d of %d", processes, total, messages);
+        double rate = messages * 1000.0 / Math.max(1, finished - started);
+        // 1.0 means every member handled the same share
+        double imbalance = most * processes / (double) messages;
+        return String.format("%-10d %12.0f %12.2f", processes, rate, imbalance);
+    }
+
+    private static String await(BufferedReader out, String prefix) throws Exception {
+        String line;
+        while ((line = out.readLine()) != null) {
+            if (line.startsWith(prefix))
+                return line;
+        }
+        throw new IllegalStateException("Group member exited before printing " + prefix);
+    }
+
+    /**
+     * One member of the group.  Prints READY once it is consuming, then DONE COUNT LAST_MILLIS once no message has
+     * arrived for IDLE milliseconds
+     */
+    public static class Member {
+        public static void main(String[] args) throws Exception {
+            String url = args[0];
+            long work = Long.parseLong(args[1]);
+            MessageHandler<DefaultResult> hdlr = (ObjectNode node) -> {
+                Blackhole.consumeCPU(work);
+                return new MessageResult<>(node, MessageResult.Status.SUCCESS);
+            };
+            BrokerConfig cfg = new BrokerConfig("ci", url, "bench", "bench", 60000L, 1);
+            CIBusListener<DefaultResult> listener = new CIBusListener<>(hdlr, cfg);
+            listener.setConsumerGroup(GROUP);
+            listener.tapIntoMessageBus("", listener.createListener(listener.messageParser()));
+            System.out.println("READY");
+
+            long last = System.currentTimeMillis();
+            long seen = 0;
+            while (System.currentTimeMillis() - last < (seen == 0 ? FIRST_MESSAGE : IDLE)) {
+                Thread.sleep(50);
+                long handled = listener.getMetrics().getHandled();
+                if (handled != seen) {
+                    seen = handled;
+                    last = System.currentTimeMillis();
+                }
+            }
+            listener.shutdown(IDLE);
+            System.out.println(String.format("DONE %d %d", seen, last));
+            System.exit(0);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of tapIntoMessageBus as the number of consumers grows.  The handler burns a fixed amount of CPU per
+ * message to stand in for real handler work, so with one consumer the run is bound by a single dispatch thread.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=ConsumerPoolBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(ConsumerPoolBenchmark.BATCH)
+public class ConsumerPoolBenchmark {
+    static final int BATCH = 2000;
+
+    @Param({"1", "2", "4", "8"})
+    public int consumers;
+
+    @Param({"inline", "pooled"})
+    public String dispatch;
+
+    @Param({"20000"})
+    public long handlerWork;
+
+    private EmbeddedBroker broker;
+    private CIBusListener<DefaultResult> listener;
+    private CIBusPublisher publisher;
+    private JMSMessageOptions opts;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.broker = new EmbeddedBroker("pool-bench");
+        long work = this.handlerWork;
+        MessageHandler<DefaultResult> hdlr = (ObjectNode node) -> {
+            Blackhole.consumeCPU(work);
+            return new MessageResult<>(node, MessageResult.Status.SUCCESS);
+        };
+        this.listener = new CIBusListener<>(hdlr, this.broker.config());
+        this.listener.setConsumerCount(this.consumers);
+        if (this.dispatch.equals("pooled"))
+            this.listener.setDispatcher(Dispatcher.pooled(this.consumers));
+        this.listener.tapIntoMessageBus("", this.listener.createListener(this.listener.messageParser()));
+
+        this.publisher = new CIBusPublisher(this.broker.config());
+        this.publisher.setPooled(true);
+        this.opts = new JMSMessageOptions("bench");
+        this.body = "{ \"status\": \"passed\", \"testrun-url\": \"https://polarion/testrun/1\" }";
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        this.listener.close();
+        ProducerPool.closeAll();
+        this.broker.close();
+    }
+
+    @Benchmark
+    public long publishAndHandle() {
+        long target = this.listener.getMetrics().getHandled() + BATCH;
+        for (int i = 0; i < BATCH; i++)
+            this.publisher.sendMessage(this.body, this.broker.getUrl(), this.opts);
+        while (this.listener.getMetrics().getHandled() < target)
+            LockSupport.parkNanos(100000);
+        return target;
+    }
+}
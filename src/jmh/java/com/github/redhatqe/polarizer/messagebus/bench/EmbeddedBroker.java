@@ -0,0 +1,73 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.github.redhatqe.polarizer.messagebus.config.BrokerConfig;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.DestinationInterceptor;
+import org.apache.activemq.broker.region.virtual.VirtualDestination;
+import org.apache.activemq.broker.region.virtual.VirtualDestinationInterceptor;
+import org.apache.activemq.broker.region.virtual.VirtualTopic;
+
+/**
+ * A non-persistent in-process broker for the benchmarks.  Like the UMB, it fans VirtualTopic.> out to queues named
+ * Consumer.CLIENT_NAME.*.VirtualTopic.>, so the listener's default queue naming works unchanged.
+ */
+public class EmbeddedBroker implements AutoCloseable {
+    private final BrokerService service;
+    private final String url;
+
+    /**
+     * @param name broker name, reachable in this JVM as vm://name
+     * @param tcpUrl if not null, also listen on this url (eg tcp://localhost:61616) so other processes can connect
+     */
+    public EmbeddedBroker(String name, String tcpUrl) throws Exception {
+        VirtualTopic vt = new VirtualTopic();
+        vt.setName("VirtualTopic.>");
+        vt.setPrefix("Consumer.*.*.");
+        VirtualDestinationInterceptor vdi = new VirtualDestinationInterceptor();
+        vdi.setVirtualDestinations(new VirtualDestination[]{ vt });
+
+        this.service = new BrokerService();
+        this.service.setBrokerName(name);
+        this.service.setPersistent(false);
+        this.service.setUseJmx(false);
+        this.service.setAdvisorySupport(false);
+        this.service.setDestinationInterceptors(new DestinationInterceptor[]{ vdi });
+        if (tcpUrl != null)
+            this.service.addConnector(tcpUrl);
+        this.service.start();
+        this.service.waitUntilStarted();
+        this.url = tcpUrl != null ? tcpUrl : String.format("vm://%s?create=false", name);
+    }
+
+    public EmbeddedBroker(String name) throws Exception {
+        this(name, null);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return a BrokerConfig whose default broker points at this embedded broker
+     */
+    public BrokerConfig config() {
+        return new BrokerConfig("ci", this.url, "bench", "bench", 60000L, 1);
+    }
+
+    /**
+     * Stops the broker.  An interrupt is passed on rather than thrown, so try-with-resources blocks don't have to
+     * handle InterruptedException
+     */
+    @Override
+    public void close() {
+        try {
+            this.service.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        this.service.waitUntilStopped();
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.github.redhatqe.polarizer.messagebus.*;
+import com.github.redhatqe.polarizer.messagebus.config.BrokerConfig;
+import com.github.redhatqe.polarizer.messagebus.config.EnvelopeOpts;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End to end throughput of small status messages, sent one per JMS message or packed into envelopes.  The body is
+ * about as small as a real status message, so the run is dominated by the per-message cost in the client and broker.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=EnvelopeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(EnvelopeBenchmark.BATCH)
+public class EnvelopeBenchmark {
+    static final int BATCH = 2000;
+
+    // 0 sends every message on its own
+    @Param({"0", "10", "100"})
+    public int maxMessages;
+
+    private EmbeddedBroker broker;
+    private CIBusListener<DefaultResult> listener;
+    private CIBusPublisher publisher;
+    private JMSMessageOptions opts;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.broker = new EmbeddedBroker("envelope-bench", "tcp://localhost:61721");
+        BrokerConfig cfg = this.broker.config();
+        cfg.getBrokers().get("ci").setEnvelope(new EnvelopeOpts(this.maxMessages > 0, 10L, this.maxMessages, 262144));
+
+        this.listener = new CIBusListener<>(IMessageListener.defaultHandler(), cfg);
+        this.listener.tapIntoMessageBus("", this.listener.createListener(this.listener.messageParser()));
+
+        this.publisher = new CIBusPublisher(cfg);
+        this.publisher.setPooled(true);
+        this.opts = new JMSMessageOptions("bench");
+        this.body = "{ \"status\": \"passed\", \"job-id\": 42 }";
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        this.listener.close();
+        ProducerPool.closeAll();
+        this.broker.close();
+    }
+
+    @Benchmark
+    public long publishAndHandle() {
+        long target = this.listener.getMetrics().getHandled() + BATCH;
+        for (int i = 0; i < BATCH; i++)
+            this.publisher.sendMessage(this.body, this.broker.getUrl(), this.opts);
+        this.publisher.flush();
+        while (this.listener.getMetrics().getHandled() < target)
+            LockSupport.parkNanos(100000);
+        return target;
+    }
+}
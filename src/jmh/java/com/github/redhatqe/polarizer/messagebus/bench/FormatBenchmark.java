@@ -0,0 +1,61 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.redhatqe.polarizer.messagebus.PayloadCodec;
+import com.github.redhatqe.polarizer.messagebus.config.CompressionOpts;
+import com.github.redhatqe.polarizer.messagebus.config.Format;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of writing an xunit importer body in each Format on the publisher, and of parsing it into a tree on the
+ * listener.  The size of each format is printed during setup.  For json the body is parsed from the UTF-8 bytes, as
+ * for a compressed message, so the formats are compared on the same footing.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=FormatBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FormatBenchmark {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Param({"json", "smile", "cbor"})
+    public String format;
+
+    // about 140 bytes per testcase
+    @Param({"100", "10000"})
+    public int testcases;
+
+    private Format f;
+    private String body;
+    private byte[] wire;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.f = Format.fromName(this.format);
+        this.body = CompressionBenchmark.xunitBody(this.testcases);
+        this.wire = this.encode();
+        System.out.printf("%n%s: %d chars -> %d bytes on the wire (%.1f%%)%n", this.format, this.body.length(),
+                this.wire.length, 100.0 * this.wire.length / this.body.length());
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(this.body.length() / 2);
+        PayloadCodec.encode(this.body, this.f, CompressionOpts.Codec.NONE, null, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public JsonNode decode() throws IOException {
+        try (JsonParser parser = PayloadCodec.factory(this.f).createParser(this.wire)) {
+            return mapper.readTree(parser);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.HeaderPredicate;
+import com.github.redhatqe.polarizer.messagebus.MessageConverter;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.openjdk.jmh.annotations.*;
+
+import javax.jms.JMSException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a message meant for some other consumer of VirtualTopic.qe.ci.> costs the listener, when it is thrown away by a
+ * HeaderPredicate (see CIBusListener.setFilter) rather than after its body has been parsed.  The property test and the
+ * compiled selector are both timed against parsing an xunit importer body of the given size.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=HeaderFilterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HeaderFilterBenchmark {
+    // about 140 bytes per testcase
+    @Param({"10", "1000"})
+    public int testcases;
+
+    private ActiveMQTextMessage msg;
+    private HeaderPredicate property;
+    private HeaderPredicate selector;
+
+    @Setup(Level.Trial)
+    public void setup() throws JMSException {
+        this.msg = new ActiveMQTextMessage();
+        this.msg.setText(CompressionBenchmark.xunitBody(this.testcases));
+        this.msg.setStringProperty("rhsm_qe", "testcase_importer");
+        this.msg.setStringProperty("type", "testcase");
+        this.msg.setStringProperty("job-id", "rhsm-ci-1234");
+        this.property = HeaderPredicate.property("rhsm_qe", "xunit_importer");
+        this.selector = HeaderPredicate.selector("rhsm_qe = 'xunit_importer' AND type LIKE 'test%'");
+    }
+
+    @Benchmark
+    public Boolean property() throws JMSException {
+        return this.property.test(this.msg);
+    }
+
+    @Benchmark
+    public Boolean selector() throws JMSException {
+        return this.selector.test(this.msg);
+    }
+
+    @Benchmark
+    public ObjectNode parse() throws JMSException {
+        return MessageConverter.toNode(this.msg);
+    }
+}
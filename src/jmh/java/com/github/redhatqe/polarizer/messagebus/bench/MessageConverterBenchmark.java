@@ -0,0 +1,73 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.MessageConverter;
+import org.apache.activemq.command.ActiveMQMapMessage;
+import org.apache.activemq.command.ActiveMQStreamMessage;
+import org.openjdk.jmh.annotations.*;
+
+import javax.jms.JMSException;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per message cost of turning a MapMessage into an ObjectNode with MessageConverter, which builds the nodes straight
+ * from the JMS values, against the old way of passing each value through ObjectMapper.convertValue.  A StreamMessage
+ * with the same values is timed as well.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=MessageConverterBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageConverterBenchmark {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // each entry is one of 5 JMS types, in turn
+    @Param({"10", "100"})
+    public int entries;
+
+    private ActiveMQMapMessage map;
+    private ActiveMQStreamMessage stream;
+
+    @Setup(Level.Trial)
+    public void setup() throws JMSException {
+        this.map = new ActiveMQMapMessage();
+        this.stream = new ActiveMQStreamMessage();
+        for (int i = 0; i < this.entries; i++) {
+            Object value;
+            switch (i % 5) {
+                case 0: value = "testMethod" + i; break;
+                case 1: value = i; break;
+                case 2: value = (long) i << 32; break;
+                case 3: value = i % 2 == 0; break;
+                default: value = i / 7.0; break;
+            }
+            this.map.setObject("field" + i, value);
+            this.stream.writeObject(value);
+        }
+    }
+
+    @Benchmark
+    public ObjectNode mapToNode() throws JMSException {
+        return MessageConverter.toNode(this.map);
+    }
+
+    @Benchmark
+    public ObjectNode mapConvertValue() throws JMSException {
+        ObjectNode root = mapper.createObjectNode();
+        Enumeration<?> names = this.map.getMapNames();
+        while (names.hasMoreElements()) {
+            String name = (String) names.nextElement();
+            root.set(name, mapper.convertValue(this.map.getObject(name), JsonNode.class));
+        }
+        return root;
+    }
+
+    @Benchmark
+    public ObjectNode streamToNode() throws JMSException {
+        return MessageConverter.toNode(this.stream);
+    }
+}
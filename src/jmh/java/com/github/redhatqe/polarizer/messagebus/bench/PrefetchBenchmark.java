@@ -0,0 +1,91 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.*;
+import com.github.redhatqe.polarizer.messagebus.config.BrokerConfig;
+import com.github.redhatqe.polarizer.messagebus.config.PrefetchOpts;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of a pool of consumers whose handler is usually quick but now and then stalls, eg on a slow http call.
+ * With a deep prefetch, the messages the broker pushed to a stalled consumer wait behind it while the other consumers
+ * run dry.  With a prefetch of 1, every message costs a round trip to the broker.  The adaptive controller should
+ * settle in between.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=PrefetchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(PrefetchBenchmark.BATCH)
+public class PrefetchBenchmark {
+    static final int BATCH = 1000;
+
+    @Param({"1", "1000", "adaptive"})
+    public String prefetch;
+
+    @Param({"4"})
+    public int consumers;
+
+    // Every stallEvery-th message makes its handler wait stallMillis
+    @Param({"50"})
+    public int stallEvery;
+
+    @Param({"20"})
+    public long stallMillis;
+
+    private EmbeddedBroker broker;
+    private CIBusListener<DefaultResult> listener;
+    private CIBusPublisher publisher;
+    private JMSMessageOptions opts;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.broker = new EmbeddedBroker("prefetch-bench", "tcp://localhost:61719");
+        BrokerConfig cfg = this.broker.config();
+        PrefetchOpts opts = new PrefetchOpts();
+        if (this.prefetch.equals("adaptive")) {
+            opts.setAdaptive(true);
+            opts.setInterval(200L);
+        }
+        else
+            opts.setQueue(Integer.parseInt(this.prefetch));
+        cfg.getBrokers().get("ci").setPrefetch(opts);
+
+        long stall = TimeUnit.MILLISECONDS.toNanos(this.stallMillis);
+        MessageHandler<DefaultResult> hdlr = (ObjectNode node) -> {
+            if (node.get("root").get("stall").asBoolean())
+                LockSupport.parkNanos(stall);
+            return new MessageResult<>(node, MessageResult.Status.SUCCESS);
+        };
+        this.listener = new CIBusListener<>(hdlr, cfg);
+        this.listener.setConsumerCount(this.consumers);
+        this.listener.tapIntoMessageBus("", this.listener.createListener(this.listener.messageParser()));
+
+        this.publisher = new CIBusPublisher(this.broker.config());
+        this.publisher.setPooled(true);
+        this.opts = new JMSMessageOptions("bench");
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        this.listener.close();
+        ProducerPool.closeAll();
+        this.broker.close();
+    }
+
+    @Benchmark
+    public long publishAndHandle() {
+        long target = this.listener.getMetrics().getHandled() + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            String body = String.format("{ \"stall\": %b, \"status\": \"passed\" }", i % this.stallEvery == 0);
+            this.publisher.sendMessage(body, this.broker.getUrl(), this.opts);
+        }
+        while (this.listener.getMetrics().getHandled() < target)
+            LockSupport.parkNanos(100000);
+        return target;
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.github.redhatqe.polarizer.messagebus.utils.HashedWheelTimer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of scheduling and then cancelling one timeout while many others are pending, which is what every message wait
+ * that gets its reply in time does.  The wheel should stay flat as pending grows, while the executor's heap grows by
+ * log(pending).
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=TimeoutWheelBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimeoutWheelBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int pending;
+
+    private HashedWheelTimer wheel;
+    private ScheduledThreadPoolExecutor executor;
+    private final Runnable noop = () -> {};
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.wheel = new HashedWheelTimer();
+        this.executor = new ScheduledThreadPoolExecutor(1);
+        this.executor.setRemoveOnCancelPolicy(true);
+        for (int i = 0; i < this.pending; i++) {
+            this.wheel.newTimeout(this.noop, 1, TimeUnit.HOURS);
+            this.executor.schedule(this.noop, 1, TimeUnit.HOURS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.wheel.stop();
+        this.executor.shutdownNow();
+    }
+
+    @Benchmark
+    public Boolean wheel() {
+        return this.wheel.newTimeout(this.noop, 30, TimeUnit.SECONDS).cancel();
+    }
+
+    @Benchmark
+    public Boolean executor() {
+        ScheduledFuture<?> f = this.executor.schedule(this.noop, 30, TimeUnit.SECONDS);
+        return f.cancel(false);
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.redhatqe.polarizer.messagebus.bench;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.*;
+import com.github.redhatqe.polarizer.reporter.utils.JsonHelper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handling an XUnit importer reply with CIBusListener.xunitStatusHandler, which binds the reply to an
+ * XUnitImportResult, against the old handler that walked the JsonNode and caught NullPointerException for malformed
+ * replies.  Each run parses the body with the handler's FieldSelector as the listener does, except raw, which is the
+ * lazy mode path binding straight from the text.
+ *
+ * malformed is a passed reply without its testrun-url, which the old handler only noticed by way of an NPE.
+ *
+ * Run with: ./gradlew jmh -PjmhInclude=XUnitHandlerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class XUnitHandlerBenchmark {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Logger logger = LogManager.getLogger(XUnitHandlerBenchmark.class.getName());
+
+    @Param({"passed", "failed", "malformed"})
+    public String reply;
+
+    private String body;
+    private FieldSelector selector;
+    private RawMessageHandler<DefaultResult> typed;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        StringBuilder sb = new StringBuilder("{ \"status\": \"");
+        sb.append(this.reply.equals("failed") ? "failed" : "passed").append("\", ");
+        if (!this.reply.equals("malformed"))
+            sb.append("\"testrun-url\": \"https://polarion.example.com/polarion/#/project/RHEL6/testrun?id=run1\", ");
+        sb.append("\"log-url\": \"https://polarion.example.com/import/log/1234\", \"import-results\": [");
+        for (int i = 0; i < 20; i++) {
+            if (i > 0)
+                sb.append(',');
+            String status = this.reply.equals("failed") && i % 5 == 0 ? "failed" : "passed";
+            sb.append(String.format("{ \"suite-name\": \"suite%d\", \"status\": \"%s\", \"testcases\": %d }", i,
+                    status, 100 + i));
+        }
+        this.body = sb.append("] }").toString();
+        this.typed = (RawMessageHandler<DefaultResult>) CIBusListener.xunitStatusHandler();
+        this.selector = FieldSelector.compile(this.typed.fields());
+    }
+
+    private ObjectNode parse() throws IOException {
+        ObjectNode node = mapper.createObjectNode();
+        node.set("root", this.selector.select(this.body));
+        return node;
+    }
+
+    @Benchmark
+    public MessageResult<DefaultResult> typed() throws IOException {
+        return this.typed.handle(this.parse());
+    }
+
+    @Benchmark
+    public MessageResult<DefaultResult> raw() {
+        return this.typed.handleRaw(this.body);
+    }
+
+    @Benchmark
+    public MessageResult<DefaultResult> legacy() throws IOException {
+        return legacyHandle(this.parse());
+    }
+
+    /**
+     * The handler as it was before XUnitImportResult, logging at the same levels
+     */
+    private static MessageResult<DefaultResult> legacyHandle(ObjectNode node) {
+        JsonNode root = node.get("root");
+        MessageResult<DefaultResult> result = new MessageResult<>(node);
+        result.info = new DefaultResult();
+        try {
+            Boolean passed = root.get("status").textValue().equals("passed");
+            if (passed) {
+                logger.info("In xunitMsgHandler: XUnit importer was successful");
+                String testrunUrl = root.get("testrun-url").textValue();
+                logger.info(String.format("Polarion TestRun = %s", testrunUrl));
+                result.info.setText(JsonHelper.nodeToString(root));
+                result.setStatus(MessageResult.Status.SUCCESS);
+            }
+            else if (root.has("import-results")) {
+                List<String> suites = new ArrayList<>();
+                root.get("import-results").elements().forEachRemaining(element -> {
+                    if (element.has("status") && !element.get("status").textValue().equals("passed")) {
+                        if (element.has("suite-name")) {
+                            String suite = element.get("suite-name").textValue();
+                            suites.add(suite);
+                            logger.info(suite + " failed to be updated");
+                        }
+                    }
+                });
+                result.setStatus(MessageResult.Status.FAILED);
+                result.setErrorDetails("TestSuites failed to be updated: " + String.join(",", suites));
+            }
+            else {
+                logger.error(root.get("message").asText());
+                result.setStatus(MessageResult.Status.EMPTY_MESSAGE);
+                result.setErrorDetails(root.get("message").toString());
+            }
+        } catch (NullPointerException npe) {
+            logger.error("Unknown format of message from bus");
+            result.setStatus(MessageResult.Status.NP_EXCEPTION);
+            result.setErrorDetails("Unknown format of message from bus");
+        } catch (JsonProcessingException e) {
+            logger.error("Unable to deserialize JsonNode");
+            result.setStatus(MessageResult.Status.WRONG_MESSAGE_FORMAT);
+            result.setErrorDetails("Unable to deserialize JsonNode");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.github.redhatqe.polarizer.messagebus.config.AckOpts;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+/**
+ * Acknowledges the messages of one Session in batches, for the client and batch ack modes.
+ *
+ * The handler reports a failed message with fail() while it runs.  Once batchSize messages have been handled, or
+ * batchTimeout has passed since the first one, the batch is committed (or acknowledged) if none of them failed, and
+ * rolled back (or recovered) otherwise.  A rollback puts every message of the batch back on the queue for redelivery.
+ *
+ * A JMS Session must only be used by one thread, and ActiveMQ counts a message as part of the batch as soon as it is
+ * delivered, before any listener sees it.  So instead of a MessageListener, the batcher runs its own receive loop on
+ * one thread, which handles the messages and is the only one to ever commit, roll back or acknowledge.  A batch that
+ * times out while no messages come is ended by that thread too, when its receive returns empty.
+ */
+class AckBatcher implements Runnable {
+    private static final Logger logger = LogManager.getLogger(AckBatcher.class.getName());
+    // The batcher whose thread is currently running the listener
+    private static final ThreadLocal<AckBatcher> current = new ThreadLocal<>();
+    // Longest a receive waits, which bounds how long close() takes
+    private static final long POLL = 100L;
+
+    private final Session session;
+    private final MessageConsumer consumer;
+    private final MessageListener listener;
+    private final AckOpts opts;
+    private final Thread thread;
+    private int count = 0;
+    private Boolean failed = false;
+    private Message last;
+    private long deadline = 0;
+    private volatile Boolean stopping = false;
+
+    AckBatcher(Session session, MessageConsumer consumer, MessageListener listener, AckOpts opts) {
+        this.session = session;
+        this.consumer = consumer;
+        this.listener = listener;
+        this.opts = opts;
+        this.thread = new Thread(this, "polarizer-ack-batcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Marks the message the calling thread is handling as failed, so its batch is not acknowledged.  Does nothing
+     * outside of a batched session
+     */
+    static void fail() {
+        AckBatcher batcher = current.get();
+        if (batcher != null)
+            batcher.failed = true;
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Stops receiving, and waits for the batcher's thread to end the batch it is in the middle of
+     */
+    void close() {
+        this.stopping = true;
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.stopping) {
+                long wait = POLL;
+                if (this.count > 0)
+                    wait = Math.max(Math.min(this.deadline - System.currentTimeMillis(), POLL), 1L);
+                Message msg = this.consumer.receive(wait);
+                if (msg != null)
+                    this.handle(msg);
+                if (this.count > 0 && (this.count >= this.opts.getBatchSize()
+                                       || System.currentTimeMillis() >= this.deadline))
+                    this.finish();
+            }
+            if (this.count > 0)
+                this.finish();
+        } catch (JMSException e) {
+            logger.error(String.format("Stopped receiving: %s", e.getMessage()));
+        }
+    }
+
+    private void handle(Message msg) {
+        if (this.count == 0)
+            this.deadline = System.currentTimeMillis() + this.opts.getBatchTimeout();
+        current.set(this);
+        try {
+            this.listener.onMessage(msg);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Listener failed: %s", e.getMessage()));
+            this.failed = true;
+        } finally {
+            current.remove();
+        }
+        this.last = msg;
+        this.count++;
+    }
+
+    private void finish() {
+        try {
+            if (this.opts.getMode() == AckOpts.Mode.BATCH) {
+                if (this.failed)
+                    this.session.rollback();
+                else
+                    this.session.commit();
+            }
+            else {
+                if (this.failed)
+                    this.session.recover();
+                else
+                    this.last.acknowledge();
+            }
+            if (this.failed)
+                logger.warn(String.format("Handler failed in a batch of %d messages, so they will be redelivered",
+                        this.count));
+        } catch (JMSException e) {
+            logger.error(String.format("Could not end batch of %d messages: %s", this.count, e.getMessage()));
+        }
+        this.count = 0;
+        this.failed = false;
+        this.last = null;
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+/**
+ * What a CIBusListener does with results when a Flowable subscriber can't keep up
+ */
+public enum BackpressureMode {
+    BUFFER,         // Buffer up to capacity results, then block the JMS session thread until the subscriber catches up.
+                    // A blocked session stops acknowledging, so the broker stops dispatching once prefetch is used up
+    DROP_OLDEST,    // Buffer up to capacity results, then throw away the oldest buffered result for each new one
+    LATEST,         // Only keep the most recent result the subscriber hasn't seen yet
+    ERROR;          // Fail the subscriber with a MissingBackpressureException as soon as it falls behind
+}
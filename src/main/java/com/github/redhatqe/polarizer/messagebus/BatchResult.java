@@ -0,0 +1,92 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.github.redhatqe.polarizer.messagebus.utils.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a CIBusPublisher.sendBatch did: how many messages it committed, how often it had to retry, and which batches
+ * it gave up on.  A failed batch keeps its messages, so the caller can send them again later or write them to disk.
+ */
+public class BatchResult {
+    private Integer committed = 0;
+    private Integer batches = 0;
+    private Integer retries = 0;
+    private final List<FailedBatch> failed = new ArrayList<>();
+
+    void recordCommit(Integer count) {
+        this.committed += count;
+        this.batches++;
+    }
+
+    void recordRetry() {
+        this.retries++;
+    }
+
+    void recordFailure(FailedBatch batch) {
+        this.failed.add(batch);
+    }
+
+    /** @return messages the broker has committed */
+    public Integer getCommitted() {
+        return committed;
+    }
+
+    /** @return transactions the broker has committed */
+    public Integer getBatches() {
+        return batches;
+    }
+
+    /** @return times a batch was sent again after a failure */
+    public Integer getRetries() {
+        return retries;
+    }
+
+    public List<FailedBatch> getFailed() {
+        return Collections.unmodifiableList(failed);
+    }
+
+    /**
+     * @return true if every message was committed
+     */
+    public Boolean isSuccess() {
+        return this.failed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchResult(committed=%d, batches=%d, retries=%d, failed=%d)",
+                this.committed, this.batches, this.retries, this.failed.size());
+    }
+
+    /**
+     * A batch that still could not be committed after all its retries
+     */
+    public static class FailedBatch {
+        private final Integer first;
+        private final List<Tuple<String, JMSMessageOptions>> messages;
+        private final String errorDetails;
+
+        FailedBatch(Integer first, List<Tuple<String, JMSMessageOptions>> messages, String errorDetails) {
+            this.first = first;
+            this.messages = messages;
+            this.errorDetails = errorDetails;
+        }
+
+        /** @return the position in the input of the first message of the batch */
+        public Integer getFirst() {
+            return first;
+        }
+
+        /** @return the body and options of each message in the batch, in the order they were given */
+        public List<Tuple<String, JMSMessageOptions>> getMessages() {
+            return messages;
+        }
+
+        public String getErrorDetails() {
+            return errorDetails;
+        }
+    }
+}
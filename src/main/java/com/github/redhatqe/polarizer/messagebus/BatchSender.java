@@ -0,0 +1,181 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.github.redhatqe.polarizer.messagebus.config.BatchOpts;
+import com.github.redhatqe.polarizer.messagebus.utils.Tuple;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Sends a run of messages over one transacted Session for CIBusPublisher.sendBatch, committing every batch.size
+ * messages or batch.interval ms.
+ *
+ * The messages of the open transaction are kept until it commits.  If a send or the commit fails, the transaction is
+ * rolled back, the Connection is replaced, and the whole batch is sent again, up to batch.retries times.  A batch that
+ * still fails is handed back in the BatchResult and the sender moves on to the next one.
+ *
+ * The interval is checked as messages come in, so a batch is only committed early when the next message arrives, or
+ * when the input runs out.
+ */
+class BatchSender implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(BatchSender.class.getName());
+
+    private final CIBusPublisher publisher;
+    private final ActiveMQConnectionFactory factory;
+    private final String destination;
+    private final BatchOpts opts;
+    private final BatchResult result = new BatchResult();
+    private final List<Pending> batch = new ArrayList<>();
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+    private JMSException error;
+    private long started;
+
+    BatchSender(CIBusPublisher publisher, ActiveMQConnectionFactory factory, String destination, BatchOpts opts) {
+        this.publisher = publisher;
+        this.factory = factory;
+        this.destination = destination;
+        this.opts = opts;
+    }
+
+    BatchResult send(Iterator<Tuple<String, JMSMessageOptions>> messages) {
+        int index = 0;
+        while (messages.hasNext()) {
+            Tuple<String, JMSMessageOptions> m = messages.next();
+            Pending p = new Pending(index++, m.first, m.second, this.publisher.nextGroupSeq(m.second));
+            if (this.batch.isEmpty())
+                this.started = System.currentTimeMillis();
+            this.batch.add(p);
+            // Once something has failed the batch will be sent again anyway, so there is no point sending the rest
+            if (this.error == null) {
+                try {
+                    this.send(p);
+                } catch (JMSException e) {
+                    this.error = e;
+                }
+            }
+            if (this.batch.size() >= this.opts.getSize()
+                    || System.currentTimeMillis() - this.started >= this.opts.getInterval())
+                this.commit();
+        }
+        if (!this.batch.isEmpty())
+            this.commit();
+        return this.result;
+    }
+
+    private void open() throws JMSException {
+        if (this.session != null)
+            return;
+        this.connection = this.factory.createConnection();
+        this.connection.setClientID(String.format("%s.batch.%s", CIBusClient.POLARIZE_CLIENT_ID, UUID.randomUUID()));
+        this.connection.setExceptionListener(exc -> logger.error(exc.getMessage()));
+        this.session = this.connection.createSession(true, Session.SESSION_TRANSACTED);
+        this.producer = this.session.createProducer(this.session.createTopic(this.destination));
+    }
+
+    private void send(Pending p) throws JMSException {
+        this.open();
+        Message msg = this.publisher.createMessage(this.session, p.text);
+        CIBusPublisher.setOptionals(msg, p.opts, p.seq);
+        this.producer.send(msg, p.opts.mode, p.opts.priority, p.opts.ttl);
+    }
+
+    private void commit() {
+        for (int attempt = 0; ; attempt++) {
+            if (this.error == null) {
+                try {
+                    this.session.commit();
+                    this.result.recordCommit(this.batch.size());
+                    this.batch.clear();
+                    return;
+                } catch (JMSException e) {
+                    this.error = e;
+                }
+            }
+            if (attempt >= this.opts.getRetries() || !this.backoff(attempt))
+                break;
+            this.result.recordRetry();
+            logger.warn(String.format("Resending batch of %d messages starting at %d: %s", this.batch.size(),
+                    this.batch.get(0).index, this.error.getMessage()));
+            this.resend();
+        }
+
+        String msg = String.format("Batch of %d messages starting at %d failed: %s", this.batch.size(),
+                this.batch.get(0).index, this.error.getMessage());
+        logger.error(msg);
+        List<Tuple<String, JMSMessageOptions>> failed = this.batch.stream()
+                .map(p -> new Tuple<>(p.text, p.opts))
+                .collect(Collectors.toList());
+        this.result.recordFailure(new BatchResult.FailedBatch(this.batch.get(0).index, failed, this.error.getMessage()));
+        this.batch.clear();
+        this.error = null;
+        this.close();
+    }
+
+    /**
+     * Sends the open batch again on a fresh Connection
+     */
+    private void resend() {
+        this.close();
+        this.error = null;
+        try {
+            for (Pending p : this.batch)
+                this.send(p);
+        } catch (JMSException e) {
+            this.error = e;
+        }
+    }
+
+    /**
+     * @return false if interrupted, in which case the batch should not be retried
+     */
+    private Boolean backoff(int attempt) {
+        try {
+            Thread.sleep(this.opts.getRetryDelay() << Math.min(attempt, 16));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Closes the Connection, which rolls back any transaction that is still open
+     */
+    @Override
+    public void close() {
+        if (this.connection != null) {
+            try {
+                this.connection.close();
+            } catch (JMSException e) {
+                logger.debug(e.getMessage());
+            }
+        }
+        this.connection = null;
+        this.session = null;
+        this.producer = null;
+    }
+
+    private static class Pending {
+        final Integer index;
+        final String text;
+        final JMSMessageOptions opts;
+        // Kept so that a resent message has the same JMSXGroupSeq as the first try
+        final Integer seq;
+
+        Pending(Integer index, String text, JMSMessageOptions opts, Integer seq) {
+            this.index = index;
+            this.text = text;
+            this.opts = opts;
+            this.seq = seq;
+        }
+    }
+}
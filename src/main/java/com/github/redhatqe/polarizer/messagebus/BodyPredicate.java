@@ -0,0 +1,386 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.util.ByteSequence;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A cheap test on the raw body of a message, run before the body is parsed.  A handler registers one with
+ * MessageHandler.prefiltering, and CIBusListener throws away the messages that fail it without building a tree for
+ * them.  This covers what a JMS selector can't, eg only the replies whose "status" is "failed".
+ *
+ * A prefilter may let through messages the handler will reject, but must never reject one the handler wants.  So
+ * whenever a predicate can't tell from the raw bytes (eg the value is written with JSON escapes, or the body is
+ * compressed) it answers true, and the handler decides.  For the same reason there is no negate.
+ *
+ * The built-in predicates scan the body in place and allocate nothing.  A TextMessage that came off the wire is
+ * scanned in the form ActiveMQ received it in, so a message that is thrown away is never decoded into a String.
+ */
+public interface BodyPredicate {
+    Boolean test(CharSequence text);
+
+    /**
+     * Tests a UTF-8 body.  ActiveMQ's own encoding of a TextMessage only differs from UTF-8 for NUL and characters
+     * outside the BMP, so it is tested this way too.  The built-in predicates answer true for patterns containing those
+     */
+    Boolean test(byte[] utf8, int offset, int length);
+
+    /**
+     * Picks the cheapest way to get at the body of msg.  Bodies that can't be scanned, ie compressed or binary ones
+     * (see PayloadCodec) and the non-text kinds of message, always pass
+     */
+    default Boolean test(Message msg) throws JMSException {
+        if (msg instanceof ActiveMQTextMessage) {
+            ActiveMQTextMessage tm = (ActiveMQTextMessage) msg;
+            ByteSequence content = tm.getContent();
+            // As marshalled, the content is the length of the text as an int, then the text
+            if (content != null && !tm.isCompressed() && content.getLength() >= 4)
+                return this.test(content.getData(), content.getOffset() + 4, content.getLength() - 4);
+        }
+        if (msg instanceof TextMessage) {
+            String text = ((TextMessage) msg).getText();
+            return this.test(text == null ? "" : text);
+        }
+        if (msg instanceof ActiveMQBytesMessage && !PayloadCodec.isEncoded(msg)) {
+            ActiveMQBytesMessage bm = (ActiveMQBytesMessage) msg;
+            ByteSequence content = bm.getContent();
+            if (bm.isCompressed())
+                return true;
+            return content == null || this.test(content.getData(), content.getOffset(), content.getLength());
+        }
+        return true;
+    }
+
+    default BodyPredicate and(BodyPredicate other) {
+        BodyPredicate self = this;
+        return new BodyPredicate() {
+            @Override
+            public Boolean test(CharSequence text) {
+                return self.test(text) && other.test(text);
+            }
+
+            @Override
+            public Boolean test(byte[] utf8, int offset, int length) {
+                return self.test(utf8, offset, length) && other.test(utf8, offset, length);
+            }
+        };
+    }
+
+    default BodyPredicate or(BodyPredicate other) {
+        BodyPredicate self = this;
+        return new BodyPredicate() {
+            @Override
+            public Boolean test(CharSequence text) {
+                return self.test(text) || other.test(text);
+            }
+
+            @Override
+            public Boolean test(byte[] utf8, int offset, int length) {
+                return self.test(utf8, offset, length) || other.test(utf8, offset, length);
+            }
+        };
+    }
+
+    /**
+     * @return a test that the body contains pattern, as written
+     */
+    static BodyPredicate contains(String pattern) {
+        return new Contains(pattern);
+    }
+
+    /**
+     * Tests that a field has a string value, eg fieldEquals("status", "failed") passes {"status": "failed"}.
+     *
+     * The path is in FieldSelector syntax, but only its last segment is looked for, at any depth, so
+     * "import-results[].status" matches any "status" field.  That passes more messages than the path alone would,
+     * which is all a prefilter needs.  A body that spells the field name with JSON escapes, eg "\u0073tatus", always
+     * passes, since its value can't be found in place.
+     *
+     * @param path the field, whose name must be ASCII
+     * @param value the string it must equal
+     */
+    static BodyPredicate fieldEquals(String path, String value) {
+        String[] segments = path.split("\\.");
+        String field = segments[segments.length - 1];
+        if (field.endsWith("[]"))
+            field = field.substring(0, field.length() - 2);
+        return new FieldEquals(field, value);
+    }
+
+    /**
+     * Whether pattern is encoded the same way in UTF-8 and in ActiveMQ's modified UTF-8
+     */
+    static Boolean isPlain(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == 0 || Character.isSurrogate(c))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return where pattern first starts in data[from, end), or -1
+     */
+    static int indexOf(byte[] data, int from, int end, byte[] pattern) {
+        byte first = pattern[0];
+        int max = end - pattern.length;
+        for (int i = from; i <= max; i++) {
+            // A tight loop over single bytes, only left on a possible match.  This runs at about the speed of just
+            // reading the bytes, which skipping searches like Horspool's don't beat on JSON bodies
+            if (data[i] != first)
+                continue;
+            int j = 1;
+            while (j < pattern.length && data[i + j] == pattern[j])
+                j++;
+            if (j == pattern.length)
+                return i;
+        }
+        return -1;
+    }
+
+    static int indexOf(CharSequence text, int from, String pattern) {
+        // String.indexOf is an intrinsic, so use it where possible
+        if (text instanceof String)
+            return ((String) text).indexOf(pattern, from);
+        char first = pattern.charAt(0);
+        int max = text.length() - pattern.length();
+        for (int i = from; i <= max; i++) {
+            if (text.charAt(i) != first)
+                continue;
+            int j = 1;
+            while (j < pattern.length() && text.charAt(i + j) == pattern.charAt(j))
+                j++;
+            if (j == pattern.length())
+                return i;
+        }
+        return -1;
+    }
+
+    class Contains implements BodyPredicate {
+        private final String pattern;
+        private final byte[] bytes;
+        private final Boolean plain;
+
+        Contains(String pattern) {
+            if (pattern.isEmpty())
+                throw new IllegalArgumentException("The pattern can't be empty");
+            this.pattern = pattern;
+            this.bytes = pattern.getBytes(StandardCharsets.UTF_8);
+            this.plain = isPlain(pattern);
+        }
+
+        @Override
+        public Boolean test(CharSequence text) {
+            return indexOf(text, 0, this.pattern) >= 0;
+        }
+
+        @Override
+        public Boolean test(byte[] utf8, int offset, int length) {
+            return !this.plain || indexOf(utf8, offset, offset + length, this.bytes) >= 0;
+        }
+    }
+
+    class FieldEquals implements BodyPredicate {
+        private static final byte[] QUOTE = {'"'};
+        private static final byte[] BACKSLASH = {'\\'};
+
+        private final String field;
+        private final String key;
+        private final String value;
+        private final byte[] keyBytes;
+        private final byte[] valueBytes;
+        // false when the value has to be escaped in JSON, or has a different modified UTF-8 form
+        private final Boolean plain;
+
+        FieldEquals(String field, String value) {
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c < 0x20 || c > 0x7e || c == '"' || c == '\\')
+                    throw new IllegalArgumentException(String.format("Can't prefilter on field %s", field));
+            }
+            this.field = field;
+            this.key = '"' + field + '"';
+            this.value = '"' + value + '"';
+            this.keyBytes = this.key.getBytes(StandardCharsets.UTF_8);
+            this.valueBytes = this.value.getBytes(StandardCharsets.UTF_8);
+            Boolean plain = isPlain(value);
+            for (int i = 0; i < value.length() && plain; i++) {
+                char c = value.charAt(i);
+                plain = c >= 0x20 && c != '"' && c != '\\';
+            }
+            this.plain = plain;
+        }
+
+        @Override
+        public Boolean test(CharSequence text) {
+            if (!this.plain)
+                return true;
+            int end = text.length();
+            int at = 0;
+            while ((at = indexOf(text, at, this.key)) >= 0) {
+                int i = skipSpace(text, at + this.key.length(), end);
+                if (i < end && text.charAt(i) == ':') {
+                    i = skipSpace(text, i + 1, end);
+                    int j = 0;
+                    while (j < this.value.length() && i + j < end && text.charAt(i + j) == this.value.charAt(j))
+                        j++;
+                    // A backslash means the value is escaped, and can't be compared as is
+                    if (j == this.value.length() || (i + j < end && text.charAt(i + j) == '\\'))
+                        return true;
+                }
+                at++;
+            }
+            return this.hasEscapedKey(text, end);
+        }
+
+        @Override
+        public Boolean test(byte[] utf8, int offset, int length) {
+            if (!this.plain)
+                return true;
+            int end = offset + length;
+            int at = offset;
+            while ((at = indexOf(utf8, at, end, this.keyBytes)) >= 0) {
+                int i = skipSpace(utf8, at + this.keyBytes.length, end);
+                if (i < end && utf8[i] == ':') {
+                    i = skipSpace(utf8, i + 1, end);
+                    int j = 0;
+                    while (j < this.valueBytes.length && i + j < end && utf8[i + j] == this.valueBytes[j])
+                        j++;
+                    if (j == this.valueBytes.length || (i + j < end && utf8[i + j] == '\\'))
+                        return true;
+                }
+                at++;
+            }
+            return this.hasEscapedKey(utf8, offset, end);
+        }
+
+        /**
+         * Whether some string in the body is the field name spelled with escapes, which the search for the key as
+         * written can't find.  Most bodies have no backslash at all, and are done with in one more pass
+         */
+        private Boolean hasEscapedKey(CharSequence text, int end) {
+            if (indexOf(text, 0, "\\") < 0)
+                return false;
+            for (int at = 0; (at = indexOf(text, at, "\"")) >= 0; at++) {
+                if (this.isEscapedKey(text, at + 1, end))
+                    return true;
+            }
+            return false;
+        }
+
+        private Boolean hasEscapedKey(byte[] data, int offset, int end) {
+            if (indexOf(data, offset, end, BACKSLASH) < 0)
+                return false;
+            for (int at = offset; (at = indexOf(data, at, end, QUOTE)) >= 0; at++) {
+                if (this.isEscapedKey(data, at + 1, end))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Whether the string starting at i decodes to the field name, and has at least one escape in it
+         */
+        private Boolean isEscapedKey(CharSequence text, int i, int end) {
+            Boolean escaped = false;
+            for (int k = 0; k < this.field.length(); k++) {
+                if (i >= end)
+                    return false;
+                char c = text.charAt(i);
+                if (c != '\\') {
+                    if (c != this.field.charAt(k))
+                        return false;
+                    i++;
+                    continue;
+                }
+                // The field has no quotes, backslashes or control characters, so only \\u and \/ can spell part of it
+                int decoded = -1;
+                if (i + 1 < end) {
+                    char e = text.charAt(i + 1);
+                    decoded = e == 'u' ? hex(text, i + 2, end) : e == '/' ? '/' : -1;
+                }
+                if (decoded != this.field.charAt(k))
+                    return false;
+                i += text.charAt(i + 1) == 'u' ? 6 : 2;
+                escaped = true;
+            }
+            return escaped && i < end && text.charAt(i) == '"';
+        }
+
+        private Boolean isEscapedKey(byte[] data, int i, int end) {
+            Boolean escaped = false;
+            for (int k = 0; k < this.field.length(); k++) {
+                if (i >= end)
+                    return false;
+                char c = (char) (data[i] & 0xff);
+                if (c != '\\') {
+                    if (c != this.field.charAt(k))
+                        return false;
+                    i++;
+                    continue;
+                }
+                int decoded = -1;
+                if (i + 1 < end) {
+                    char e = (char) (data[i + 1] & 0xff);
+                    decoded = e == 'u' ? hex(data, i + 2, end) : e == '/' ? '/' : -1;
+                }
+                if (decoded != this.field.charAt(k))
+                    return false;
+                i += data[i + 1] == 'u' ? 6 : 2;
+                escaped = true;
+            }
+            return escaped && i < end && data[i] == '"';
+        }
+
+        /**
+         * @return the value of the 4 hex digits of a \\u escape starting at i, or -1
+         */
+        private static int hex(CharSequence text, int i, int end) {
+            if (i + 4 > end)
+                return -1;
+            int v = 0;
+            for (int j = i; j < i + 4; j++) {
+                int d = Character.digit(text.charAt(j), 16);
+                if (d < 0)
+                    return -1;
+                v = v * 16 + d;
+            }
+            return v;
+        }
+
+        private static int hex(byte[] data, int i, int end) {
+            if (i + 4 > end)
+                return -1;
+            int v = 0;
+            for (int j = i; j < i + 4; j++) {
+                int d = Character.digit((char) (data[j] & 0xff), 16);
+                if (d < 0)
+                    return -1;
+                v = v * 16 + d;
+            }
+            return v;
+        }
+
+        private static int skipSpace(CharSequence text, int i, int end) {
+            while (i < end && isSpace(text.charAt(i)))
+                i++;
+            return i;
+        }
+
+        private static int skipSpace(byte[] data, int i, int end) {
+            while (i < end && isSpace((char) data[i]))
+                i++;
+            return i;
+        }
+
+        private static Boolean isSpace(char c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+        }
+    }
+}
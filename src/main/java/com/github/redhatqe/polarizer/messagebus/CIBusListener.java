@@ -5,18 +5,25 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.config.AckOpts;
 import com.github.redhatqe.polarizer.messagebus.config.Broker;
 import com.github.redhatqe.polarizer.messagebus.config.BrokerConfig;
 import com.github.redhatqe.polarizer.messagebus.exceptions.NoConfigFoundError;
+import com.github.redhatqe.polarizer.messagebus.utils.HashedWheelTimer;
 import com.github.redhatqe.polarizer.messagebus.utils.Tuple;
 import com.github.redhatqe.polarizer.reporter.configuration.Serializer;
 import com.github.redhatqe.polarizer.reporter.utils.JsonHelper;
+import io.reactivex.BackpressureOverflowStrategy;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
 import io.reactivex.functions.Action;
 import io.reactivex.functions.Consumer;
 import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.PublishSubject;
 import io.reactivex.subjects.Subject;
+import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.command.ActiveMQQueue;
 import org.apache.commons.collections4.queue.CircularFifoQueue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,20 +34,51 @@ import java.io.File;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
 /**
  * A Class that provides functionality to listen to the CI Message Bus
  */
-public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageListener {
+public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageListener, AutoCloseable {
     static public Logger logger = LogManager.getLogger(CIBusListener.class.getName());
+    // Thread safe, and far too expensive to build per message
+    private static final ObjectMapper mapper = new ObjectMapper();
     private String topic;
     private Subject<ObjectNode> nodeSub;
     private Subject<MessageResult<T>> resultSubject;
-    private Integer messageCount = 0;
+    private MessageHandler<T> handler;
+    private FieldSelector fieldSelector;
+    private BodyPredicate prefilter;
     public CircularFifoQueue<MessageResult<T>> messages;
-    private static final Integer SUBJECT_COMPLETED = -1;
+    private static final Long PROGRESS_INTERVAL = 10000L;
+    private static final HashedWheelTimer timer = HashedWheelTimer.shared();
     private Connection connection = null;
+    private SubscriptionEngine.Subscription subscription = null;
+    private Integer consumerCount = 1;
+    private String consumerGroup = null;
+    private final List<MessageConsumer> consumers = new CopyOnWriteArrayList<>();
+    private PrefetchController prefetchController = null;
+    private final List<AckBatcher> batchers = new CopyOnWriteArrayList<>();
+    private Predicate<MessageResult<T>> ackWhen = CIBusListener::isHandled;
+    private Boolean lazyResults = false;
+    private HeaderPredicate filter = null;
+    private final List<Route<T>> routes = new CopyOnWriteArrayList<>();
+    private Dispatcher dispatcher = Dispatcher.inline();
+    private final ListenerMetrics metrics = new ListenerMetrics();
+    private final AtomicReference<ListenerState> state = new AtomicReference<>(ListenerState.CREATED);
+    // listenUntil sleeps on countChanged.  The lock is only taken to signal when some thread is actually blocked
+    private final Lock countLock = new ReentrantLock();
+    private final Condition countChanged = this.countLock.newCondition();
+    private final AtomicInteger blocked = new AtomicInteger(0);
+    private final List<Tuple<Integer, CompletableFuture<Integer>>> waiters = new CopyOnWriteArrayList<>();
+    private final List<ResultSink<T>> sinks = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<CompletableFuture<MessageResult<T>>> nextWaiters = new ConcurrentLinkedQueue<>();
 
 
     public CIBusListener() {
@@ -86,16 +124,85 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
         return this.nodeSub;
     }
 
+    /**
+     * The resultSubject has no backpressure.  A slow subscriber either holds up the JMS thread for every single
+     * result, or piles results up without bound if it observes on another thread.  Prefer getResults()
+     */
     public Subject<MessageResult<T>> getResultSubject() {
         return resultSubject;
     }
 
+    /**
+     * Gets the results as a Flowable that applies the given backpressure mode to each of its subscribers
+     *
+     * The Flowable completes once the listener stops listening.  With BackpressureMode.BUFFER a subscriber that falls
+     * capacity results behind blocks the consumer's session thread.  That holds back acknowledgements, and the broker
+     * stops sending once the consumer's prefetch is full.  Results thrown away under DROP_OLDEST are counted as
+     * dropped in the metrics.
+     *
+     * @param mode what to do when a subscriber falls behind
+     * @param capacity how many results may be buffered per subscriber (ignored for LATEST and ERROR)
+     * @return a Flowable of this listener's MessageResults
+     */
+    public Flowable<MessageResult<T>> getResults(BackpressureMode mode, Integer capacity) {
+        return Flowable.defer(() -> {
+            Boolean blocking = mode == BackpressureMode.BUFFER;
+            ResultSink<T> sink = new ResultSink<>(blocking, blocking ? capacity : 0);
+            BackpressureStrategy strategy = mode == BackpressureMode.ERROR ? BackpressureStrategy.ERROR
+                                                                          : BackpressureStrategy.MISSING;
+            Flowable<MessageResult<T>> results = Flowable.create(emitter -> {
+                sink.attach(emitter);
+                emitter.setCancellable(() -> {
+                    this.sinks.remove(sink);
+                    sink.wake();
+                });
+                this.sinks.add(sink);
+                if (this.isDone())
+                    sink.complete();
+            }, strategy);
+
+            switch (mode) {
+                case BUFFER:
+                    // The sink grants itself credit just before the request reaches the buffer, so the buffer can
+                    // briefly hold more than capacity.  It is still bounded by the sink's credit, so it can't grow
+                    // without limit
+                    return results.onBackpressureBuffer().doOnRequest(sink::grant);
+                case DROP_OLDEST:
+                    return results.onBackpressureBuffer(capacity, this.metrics::recordDropped,
+                            BackpressureOverflowStrategy.DROP_OLDEST);
+                case LATEST:
+                    return results.onBackpressureLatest();
+                default:
+                    return results;
+            }
+        });
+    }
+
+    public Flowable<MessageResult<T>> getResults() {
+        return this.getResults(BackpressureMode.BUFFER, Flowable.bufferSize());
+    }
+
+    /**
+     * @return the number of messages the handler has processed
+     */
     public Integer getMessageCount() {
-        return messageCount;
+        return (int) this.metrics.getHandled();
+    }
+
+    public ListenerMetrics getMetrics() {
+        return this.metrics;
     }
 
+    public ListenerState getState() {
+        return this.state.get();
+    }
+
+    /**
+     * Resizes the buffer of the most recent MessageResults
+     *
+     * @param messageCount how many results to keep
+     */
     public void setMessages(Integer messageCount) {
-        this.messageCount = messageCount;
         CircularFifoQueue<MessageResult<T>> fifo = new CircularFifoQueue<>(messageCount);
         fifo.addAll(this.messages);
         this.messages = fifo;
@@ -103,6 +210,150 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
 
     public String getClientID() { return this.clientID; }
 
+    public String getConsumerGroup() {
+        return consumerGroup;
+    }
+
+    /**
+     * Puts this listener in a consumer group.  Every listener in the same group, in this process or any other, reads
+     * from one shared virtual topic queue, so ActiveMQ spreads the messages across them instead of each one getting a
+     * copy of every message.  The connection still gets its own unique client ID.
+     *
+     * Members of a group should all use the same selector.  A message that matches none of the selectors on the queue
+     * stays on the queue.
+     *
+     * @param group a name stable across the listener instances, eg "xunit-importer".  null leaves the group
+     */
+    public void setConsumerGroup(String group) {
+        if (group != null && (group.contains(".") || group.equals("")))
+            throw new IllegalArgumentException("A consumer group name can't be empty or contain a '.'");
+        this.consumerGroup = group;
+    }
+
+    /**
+     * @return the queue tapIntoMessageBus(String, MessageListener) reads from.  This is Consumer.CLIENT_ID.TOPIC, or
+     * Consumer.client-polarize.GROUP.TOPIC in a consumer group
+     */
+    public String getConsumerQueue() {
+        if (this.consumerGroup != null)
+            return String.format("Consumer.%s.%s.%s", POLARIZE_CLIENT_ID, this.consumerGroup, this.topic);
+        return String.format("Consumer.%s.%s", this.clientID, this.topic);
+    }
+
+    public Integer getConsumerCount() {
+        return consumerCount;
+    }
+
+    /**
+     * Sets how many Sessions and MessageConsumers tapIntoMessageBus opens on the queue.  Each Session has its own
+     * dispatch thread, so messages are parsed and handled on up to count threads at once.  The handler must therefore
+     * be thread safe if count is more than 1.
+     *
+     * @param count number of consumers, must be set before tapIntoMessageBus is called
+     */
+    public void setConsumerCount(Integer count) {
+        if (count < 1)
+            throw new IllegalArgumentException("Must have at least one consumer");
+        this.consumerCount = count;
+    }
+
+    public Boolean getLazyResults() {
+        return lazyResults;
+    }
+
+    /**
+     * In lazy mode, a TextMessage whose handler is a RawMessageHandler is passed to handleRaw as plain text, without
+     * being parsed into a node first.  This skips nodeSub, so lazy mode is off by default
+     */
+    public void setLazyResults(Boolean lazy) {
+        this.lazyResults = lazy;
+    }
+
+    /**
+     * By default a result counts as handled unless its status is ERROR or JMS_EXCEPTION
+     */
+    private static <T> Boolean isHandled(MessageResult<T> result) {
+        MessageResult.Status status = result.getStatus();
+        return status != MessageResult.Status.ERROR && status != MessageResult.Status.JMS_EXCEPTION;
+    }
+
+    /**
+     * With the client or batch ack mode (see AckOpts), decides which results let their batch be acknowledged.  A batch
+     * with any result that fails the test is redelivered
+     *
+     * @param ackWhen true if the message behind a result may be acknowledged
+     */
+    public void setAckWhen(Predicate<MessageResult<T>> ackWhen) {
+        this.ackWhen = ackWhen;
+    }
+
+    /**
+     * @return the test set with setFilter, if any
+     */
+    public Optional<HeaderPredicate> getFilter() {
+        return Optional.ofNullable(this.filter);
+    }
+
+    /**
+     * Sets a test on the headers and properties of each message.  Messages that fail it are thrown away before their
+     * body is read, and counted as filtered in the metrics.  On a busy wildcard destination like VirtualTopic.qe.ci.>
+     * this saves parsing all the messages meant for someone else.
+     *
+     * Envelopes are unpacked before the test, so it sees the same properties as for a message sent on its own.
+     *
+     * @param filter the test, or null to let every message through
+     */
+    public void setFilter(HeaderPredicate filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Gives the messages that pass a header test to their own handler, instead of the listener's.  Routes are tried in
+     * the order they were added, and the first one that matches claims the message.  Messages no route claims go to
+     * the listener's handler as usual.
+     *
+     * Only the claiming handler's fields (see MessageHandler.fields) are parsed out of the body, and only if it passes
+     * the handler's prefilter.  Its results are recorded like any other, but routed messages skip nodeSub.
+     */
+    public void addRoute(HeaderPredicate when, MessageHandler<T> hdlr) {
+        this.routes.add(new Route<>(when, hdlr));
+    }
+
+    /**
+     * @return the prefetch of the queue consumers, which changes over time if the broker's prefetch is adaptive
+     */
+    public Integer getPrefetch() {
+        if (this.prefetchController != null)
+            return this.prefetchController.getPrefetch();
+        return this.broker.getPrefetch().getQueue();
+    }
+
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Sets which threads parse and handle messages once a consumer receives them.  By default this happens on the
+     * consumer's session thread.
+     *
+     * Other dispatchers let the session acknowledge a message as soon as it is queued, so the queued messages are lost
+     * if the listener goes down before its workers get to them.  Only use one when that is acceptable, eg for messages
+     * that are resent or only of interest while the listener is up.
+     */
+    public void setDispatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        this.metrics.watchQueues(dispatcher::getQueueDepths);
+    }
+
+    /**
+     * With a single consumer and inline dispatch, messages flow through nodeSub exactly as before.  Otherwise they
+     * arrive on several threads at once.  Going through the serialized nodeSub would funnel all of them back onto
+     * whichever thread happens to be emitting, so the handler is called directly instead
+     */
+    private Boolean isParallel() {
+        return this.consumerCount > 1 || !this.dispatcher.isInline();
+    }
+
     /**
      * Creates a Subject with a default set of onNext, onError, and onComplete handlers
      *
@@ -110,30 +361,109 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
      * @return A Subject which will pass the Object node along
      */
     private Subject<ObjectNode> setupDefaultSubject(MessageHandler<T> handler) {
+        this.handler = handler;
+        if (!handler.fields().isEmpty())
+            this.fieldSelector = FieldSelector.compile(handler.fields());
+        this.prefilter = handler.prefilter().orElse(null);
         // handler for onNext
-        Consumer<ObjectNode> next = (ObjectNode node) -> {
-            MessageResult<T> result = handler.handle(node);
-            logger.info("Got a message");
-            // FIXME: I dont like storing state like this, but onNext doesn't return anything
-            this.messageCount++;
-            this.messages.add(result);
-            this.resultSubject.onNext(result);
-        };
+        Consumer<ObjectNode> next = this::handleNode;
         // handler for onComplete
         Action act = () -> {
             logger.info("Stop listening!");
-            this.messageCount = SUBJECT_COMPLETED;
+            this.advance(ListenerState.COMPLETED);
+            this.signalWaiters();
+            this.sinks.forEach(ResultSink::complete);
+            this.expireNextWaiters("Listener stopped before a message arrived");
         };
         // FIXME: use DI to figure out what kind of Subject to create, ie AsyncSubject, BehaviorSubject, etc
-        Subject<ObjectNode> n = BehaviorSubject.create();
+        Subject<ObjectNode> n = BehaviorSubject.<ObjectNode>create().toSerialized();
         n.subscribe(next, Throwable::printStackTrace, act);
         return n;
     }
 
+    /**
+     * Runs the handler on a node and records the result.  This may be called from several threads at once
+     */
+    private void handleNode(ObjectNode node) {
+        this.record(this.handler.handle(node));
+    }
+
+    /**
+     * Stores a handler's result, counts it, and passes it on to the resultSubject
+     */
+    private void record(MessageResult<T> result) {
+        logger.info("Got a message");
+        // FIXME: I dont like storing state like this, but onNext doesn't return anything
+        synchronized (this.messages) {
+            this.messages.add(result);
+        }
+        this.metrics.recordHandled(result.getStatus());
+        if (!this.ackWhen.test(result))
+            AckBatcher.fail();
+        this.signalWaiters();
+        CompletableFuture<MessageResult<T>> next;
+        while ((next = this.nextWaiters.poll()) != null)
+            next.complete(result);
+        this.resultSubject.onNext(result);
+        this.sinks.forEach(s -> s.offer(result));
+    }
+
+    /**
+     * Moves the listener forward to the given state.  Does nothing if the listener is already at or past it
+     *
+     * @return true if the state changed
+     */
+    private Boolean advance(ListenerState to) {
+        ListenerState current;
+        do {
+            current = this.state.get();
+            if (!current.isBefore(to))
+                return false;
+        } while (!this.state.compareAndSet(current, to));
+        return true;
+    }
+
+    private Boolean isDone() {
+        return ListenerState.LISTENING.isBefore(this.state.get());
+    }
+
+    /**
+     * Wakes up anything waiting on the message count, ie listenUntil or a listenUntilAsync future
+     */
+    private void signalWaiters() {
+        if (this.blocked.get() > 0) {
+            this.countLock.lock();
+            try {
+                this.countChanged.signalAll();
+            } finally {
+                this.countLock.unlock();
+            }
+        }
+        if (this.waiters.isEmpty())
+            return;
+        Integer count = this.getMessageCount();
+        Boolean done = this.isDone();
+        // Completing a future runs its callbacks, which remove it from waiters, so don't complete while iterating
+        List<Tuple<Integer, CompletableFuture<Integer>>> ready = new ArrayList<>();
+        for (Tuple<Integer, CompletableFuture<Integer>> w : this.waiters)
+            if (count >= w.first || done)
+                ready.add(w);
+        ready.forEach(w -> {
+            this.waiters.remove(w);
+            w.second.complete(count);
+        });
+    }
+
     private Subject<MessageResult<T>>
     setupResultSubject() {
-        ObjectMapper mapper = new ObjectMapper();
         Consumer<MessageResult<T>> next = (n) -> {
+            if (!logger.isInfoEnabled())
+                return;
+            // Don't parse a lazy result just to log it
+            if (!n.isMaterialized()) {
+                logger.info(n.getBody());
+                return;
+            }
             n.getNode().ifPresent(node -> {
                 JsonNode root = node.get("root");
                 try {
@@ -147,7 +477,7 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
         Action act = () -> {
             logger.info("resultSubject stopped listening");
         };
-        Subject<MessageResult<T>> subj = PublishSubject.create();
+        Subject<MessageResult<T>> subj = PublishSubject.<MessageResult<T>>create().toSerialized();
         subj.subscribe(next, Throwable::printStackTrace, act);
         return subj;
     }
@@ -155,6 +485,9 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
     /**
      * Creates a default listener for MapMessage types
      *
+     * An envelope from an enveloping CIBusPublisher is unpacked first, and each message in it is parsed and handled as
+     * if it had been sent on its own.
+     *
      * @param parser a MessageParser lambda that will be applied to the MessageListener
      * @return a MessageListener lambda
      */
@@ -162,21 +495,146 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
     public MessageListener createListener(MessageParser parser) {
         return msg -> {
             try {
+                if (!Envelope.isEnvelope(msg)) {
+                    this.receive(msg, parser);
+                    return;
+                }
+                for (Message m : Envelope.unpack(msg))
+                    this.receive(m, parser);
+            } catch (JMSException e) {
+                logger.error(e.getMessage());
+                this.metrics.recordReceived();
+                this.metrics.recordFailed(MessageResult.Status.WRONG_MESSAGE_FORMAT);
+            }
+        };
+    }
+
+    private void receive(Message msg, MessageParser parser) {
+        this.metrics.recordReceived();
+        if (this.isDone()) {
+            this.metrics.recordDropped();
+            return;
+        }
+        // Stage one: decide from the headers alone whether the message is wanted, and by which handler
+        Route<T> route;
+        try {
+            if (this.filter != null && !this.filter.test(msg)) {
+                this.metrics.recordFiltered();
+                return;
+            }
+            route = this.claim(msg);
+        } catch (JMSException | RuntimeException e) {
+            logger.error(String.format("Could not check the headers of a message: %s", e.getMessage()));
+            this.metrics.recordFailed(MessageResult.Status.JMS_EXCEPTION);
+            AckBatcher.fail();
+            return;
+        }
+        this.dispatcher.dispatch(msg, () -> {
+            long started = System.nanoTime();
+            try {
+                if (this.handleOutsideNodeSub(route, msg))
+                    return;
                 ObjectNode node = parser.parse(msg);
-                // Since nodeSub is a Subject, the call to onNext will pass through the node object to itself
-                this.nodeSub.onNext(node);
+                this.metrics.recordParsed();
+                if (this.isParallel())
+                    this.handleNode(node);
+                else
+                    // Since nodeSub is a Subject, the call to onNext will pass through the node object to itself
+                    this.nodeSub.onNext(node);
             } catch (ExecutionException | InterruptedException | JMSException e) {
+                this.metrics.recordFailed(MessageResult.Status.JMS_EXCEPTION);
+                AckBatcher.fail();
                 this.nodeSub.onError(e);
+            } finally {
+                this.metrics.recordServiceTime(System.nanoTime() - started);
             }
-        };
+        });
+    }
+
+    /**
+     * Deals with the messages that never reach nodeSub: the ones the prefilter throws away, routed ones, and raw ones.
+     * An error with one of them is recorded as a JMS_EXCEPTION result, since passing it to nodeSub would end the
+     * listener's own handler for good
+     *
+     * @return false if the message is left for nodeSub
+     */
+    private Boolean handleOutsideNodeSub(Route<T> route, Message msg) {
+        try {
+            // The body is scanned before anything is parsed out of it, on the dispatch thread so that the scan isn't
+            // holding up the consumer
+            BodyPredicate pre = route != null ? route.prefilter : this.prefilter;
+            if (pre != null && !pre.test(msg)) {
+                this.metrics.recordFiltered();
+                return true;
+            }
+            if (route != null) {
+                this.handleRouted(route, msg);
+                return true;
+            }
+            if (this.isRaw(this.handler, msg)) {
+                this.record(((RawMessageHandler<T>) this.handler).handleRaw(((TextMessage) msg).getText()));
+                return true;
+            }
+            return false;
+        } catch (JMSException e) {
+            logger.error(String.format("Could not handle a message: %s", e.getMessage()));
+            this.record(MessageResult.ofStatus(MessageResult.Status.JMS_EXCEPTION, e.getMessage()));
+            AckBatcher.fail();
+            return true;
+        }
+    }
+
+    private Boolean isRaw(MessageHandler<T> hdlr, Message msg) {
+        return this.lazyResults && hdlr instanceof RawMessageHandler && msg instanceof TextMessage;
+    }
+
+    /**
+     * @return the first route whose test msg passes, or null if none does
+     */
+    private Route<T> claim(Message msg) throws JMSException {
+        for (Route<T> route : this.routes) {
+            if (route.when.test(msg))
+                return route;
+        }
+        return null;
+    }
+
+    /**
+     * Stage two for a routed message: the body is only read now that a handler has claimed it
+     */
+    private void handleRouted(Route<T> route, Message msg) throws JMSException {
+        if (this.isRaw(route.handler, msg)) {
+            this.record(((RawMessageHandler<T>) route.handler).handleRaw(((TextMessage) msg).getText()));
+            return;
+        }
+        ObjectNode node = MessageConverter.toNode(msg, route.fieldSelector);
+        this.metrics.recordParsed();
+        this.record(route.handler.handle(node));
+    }
+
+    private static class Route<T> {
+        final HeaderPredicate when;
+        final MessageHandler<T> handler;
+        final FieldSelector fieldSelector;
+        final BodyPredicate prefilter;
+
+        Route(HeaderPredicate when, MessageHandler<T> handler) {
+            this.when = when;
+            this.handler = handler;
+            this.fieldSelector = handler.fields().isEmpty() ? null : FieldSelector.compile(handler.fields());
+            this.prefilter = handler.prefilter().orElse(null);
+        }
     }
 
     /**
      * A synchronous blocking call to receive a message from the message bus
      *
+     * @deprecated opens a new connection on every call, which the caller has to close.  Use a MessageReceiver, which
+     * caches its connection and consumers
      * @param selector the JMS selector to get a message from a topic
      * @return An optional tuple of the session connection and the Message object
      */
+    @Deprecated
     @Override
     public Optional<Tuple<Connection, Message>> waitForMessage(String selector) {
         String brokerUrl = this.broker.getUrl();
@@ -227,31 +685,64 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
     tapIntoMessageBus( String selector
                      , MessageListener listener
                      , String publishDest) {
-        if (this.connection != null) {
+        if (!this.state.compareAndSet(ListenerState.CREATED, ListenerState.LISTENING)) {
             logger.info("This CIBusListener already being used.  Create another CIBusListner object");
-            return Optional.of(this.connection);
+            return Optional.ofNullable(this.connection);
         }
         String brokerUrl = this.broker.getUrl();
         ActiveMQConnectionFactory factory = this.setupFactory(brokerUrl, this.broker);
         Connection connection = null;
-        MessageConsumer consumer;
         logger.info(String.format("In CIBusListener: Using selector of %s", selector));
+        AckOpts ack = this.broker.getAck();
+        if (ack.getMode() == AckOpts.Mode.OPTIMIZED) {
+            factory.setOptimizeAcknowledge(true);
+            factory.setOptimizeAcknowledgeTimeOut(ack.getBatchTimeout());
+        }
+        if (ack.isBatched() && !this.dispatcher.isInline()) {
+            // The batch can only be acknowledged once the session thread knows how its messages were handled
+            logger.warn(String.format("The %s ack mode handles messages on the session thread", ack.getMode().getName()));
+            this.dispatcher.close();
+            this.setDispatcher(Dispatcher.inline());
+        }
+        else if (!this.dispatcher.isInline())
+            logger.warn(String.format("With the %s ack mode, messages are acknowledged before a worker handles them",
+                    ack.getMode().getName()));
 
         try {
             connection = factory.createConnection();
             connection.setClientID(this.clientID);
             connection.setExceptionListener(exc -> logger.error(exc.getMessage()));
 
-            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            Queue dest = session.createQueue(publishDest);
-            if (selector.equals(""))
-                consumer = session.createConsumer(dest);
-            else
-                consumer = session.createConsumer(dest, selector);
-
-            // FIXME: We need to have some way to know when we see our message.
-            consumer.setMessageListener(listener);
+            // Each Session gets its own dispatch thread from the broker, so N of them gives N parallel consumers
+            for (int i = 0; i < this.consumerCount; i++) {
+                Session session = connection.createSession(ack.getMode() == AckOpts.Mode.BATCH, sessionMode(ack));
+                Queue dest = session.createQueue(publishDest);
+                MessageConsumer consumer;
+                if (selector.equals(""))
+                    consumer = session.createConsumer(dest);
+                else
+                    consumer = session.createConsumer(dest, selector);
+
+                // FIXME: We need to have some way to know when we see our message.
+                if (ack.isBatched()) {
+                    // The batcher receives on a thread of its own, the only one that touches the session
+                    AckBatcher batcher = new AckBatcher(session, consumer, listener, ack);
+                    this.batchers.add(batcher);
+                    batcher.start();
+                }
+                else
+                    consumer.setMessageListener(listener);
+                this.consumers.add(consumer);
+            }
             connection.start();
+            if (this.broker.getPrefetch().getAdaptive() && ack.getMode() != AckOpts.Mode.AUTO)
+                // The client batches its acks by the prefetch it started with, which the controller can't change
+                logger.warn(String.format("Adaptive prefetch is off with the %s ack mode", ack.getMode().getName()));
+            else if (this.broker.getPrefetch().getAdaptive()) {
+                this.prefetchController = new PrefetchController((ActiveMQConnection) connection,
+                        new ActiveMQQueue(publishDest), this.consumers, this.metrics, this.broker.getPrefetch(), timer);
+                this.prefetchController.start();
+            }
         } catch (JMSException e) {
             e.printStackTrace();
         } catch (Exception e) {
@@ -259,9 +750,117 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
             e.printStackTrace();
         }
         this.connection = connection;
+        // Let the caller try again if we never got connected
+        if (connection == null)
+            this.state.compareAndSet(ListenerState.LISTENING, ListenerState.CREATED);
         return Optional.ofNullable(connection);
     }
 
+    private static Integer sessionMode(AckOpts ack) {
+        switch (ack.getMode()) {
+            case DUPS_OK:
+                return Session.DUPS_OK_ACKNOWLEDGE;
+            case CLIENT:
+                return Session.CLIENT_ACKNOWLEDGE;
+            case BATCH:
+                return Session.SESSION_TRANSACTED;
+            default:
+                return Session.AUTO_ACKNOWLEDGE;
+        }
+    }
+
+    /**
+     * Listens on this listener's own queue, or on its group's shared queue if a consumer group was set
+     *
+     * @param selector String to use for JMS selector
+     * @param listener a MessageListener, normally from createListener
+     * @return an Optional Connection to be used for closing the session
+     */
+    public Optional<Connection> tapIntoMessageBus(String selector, MessageListener listener) {
+        return this.tapIntoMessageBus(selector, listener, this.getConsumerQueue());
+    }
+
+    /**
+     * Listens for messages through a shared SubscriptionEngine instead of a connection of this listener's own.  The
+     * selector is evaluated locally by the engine, so any number of listeners can share one broker connection.
+     *
+     * @param engine the engine to subscribe with, eg SubscriptionEngine.forBroker(broker)
+     * @param selector String to use for JMS selector
+     * @param listener a MessageListener, normally from createListener
+     * @return the Subscription, which close() will also close
+     */
+    public Optional<SubscriptionEngine.Subscription>
+    tapIntoMessageBus( SubscriptionEngine engine
+                     , String selector
+                     , MessageListener listener) {
+        if (!this.state.compareAndSet(ListenerState.CREATED, ListenerState.LISTENING)) {
+            logger.info("This CIBusListener already being used.  Create another CIBusListner object");
+            return Optional.ofNullable(this.subscription);
+        }
+        try {
+            this.subscription = engine.subscribe(selector, listener);
+        } catch (JMSException e) {
+            e.printStackTrace();
+            this.state.compareAndSet(ListenerState.LISTENING, ListenerState.CREATED);
+        }
+        return Optional.ofNullable(this.subscription);
+    }
+
+    /**
+     * Stops listening and closes the connection made by tapIntoMessageBus (or the subscription, if it was made through
+     * a SubscriptionEngine)
+     */
+    @Override
+    public void close() {
+        this.advance(ListenerState.CLOSED);
+        this.signalWaiters();
+        this.sinks.forEach(ResultSink::complete);
+        this.expireNextWaiters("Listener was closed");
+        if (this.prefetchController != null)
+            this.prefetchController.stop();
+        // Acknowledge (or redeliver) whatever the last partial batches hold before the sessions go away
+        this.batchers.forEach(AckBatcher::close);
+        if (this.subscription != null)
+            this.subscription.close();
+        if (this.connection != null) {
+            try {
+                this.connection.close();
+            } catch (JMSException e) {
+                e.printStackTrace();
+            }
+        }
+        this.dispatcher.close();
+    }
+
+    /**
+     * Leaves the queue without losing messages, so the other members of a consumer group pick up the slack.
+     *
+     * First the consumers are closed.  Each close waits for a message listener that is running to return, and the
+     * messages prefetched but not yet delivered go back to the broker, which hands them to the remaining consumers.
+     * Then the dispatcher is given up to timeout to finish the messages it has already been handed, and finally the
+     * listener is closed.
+     *
+     * @param timeout milliseconds to wait for in-flight messages to be handled
+     * @return true if every in-flight message was handled before the listener closed
+     */
+    public Boolean shutdown(Long timeout) {
+        if (this.prefetchController != null)
+            this.prefetchController.stop();
+        for (MessageConsumer consumer : this.consumers) {
+            try {
+                consumer.close();
+            } catch (JMSException e) {
+                logger.error(String.format("Could not close consumer: %s", e.getMessage()));
+            }
+        }
+        this.consumers.clear();
+        Boolean drained = this.dispatcher.drain(timeout);
+        if (!drained)
+            logger.warn(String.format("Gave up on in-flight messages after %d ms", timeout));
+        this.close();
+        return drained;
+    }
+
     public MessageParser messageParser() {
         return this::parseMessage;
     }
@@ -269,6 +868,9 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
     /**
      * Parses a Message returning a Jackson ObjectNode
      *
+     * If the handler declares the fields it needs (see MessageHandler.fields), only those fields of a TextMessage body
+     * are parsed into the node.  The rest of the body is skipped by the streaming parser.
+     *
      * @param msg Message received from a Message bus
      * @return
      * @throws ExecutionException
@@ -277,82 +879,112 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
      */
     @Override
     public ObjectNode parseMessage(Message msg) throws JMSException  {
-        ObjectMapper mapper = new ObjectMapper();
-        ObjectNode root = mapper.createObjectNode();
-        if (msg instanceof MapMessage) {
-            MapMessage mm = (MapMessage) msg;
-            Enumeration names = mm.getMapNames();
-            while(names.hasMoreElements()) {
-                String p = (String) names.nextElement();
-                String field = mm.getStringProperty(p);
-                root.set(field, mapper.convertValue(mm.getObject(field), JsonNode.class));
-            }
-            return root;
-        }
-        else if (msg instanceof TextMessage) {
-            TextMessage tm = (TextMessage) msg;
-            Enumeration props = tm.getPropertyNames();
-            while(props.hasMoreElements()) {
-                String p = props.nextElement().toString();
-                if (p.equals("type")) {
-                    String val = msg.getStringProperty("type");
-                    logger.info(String.format("Message prop: type=%s", val));
-                }
-                else if (p.equals("rhsm_qe")) {
-                    String val = msg.getStringProperty("rhsm_qe");
-                    logger.info(String.format("Message prop: rhsm_qe=%s", val));
-                }
-                else if (p.equals("job-id")) {
-                    String val = msg.getStringProperty("job-id");
-                    logger.info(String.format("Message prop: job-id=%s", val));
-                }
-            }
-            String text = tm.getText();
-            logger.info(text);
-            try {
-                JsonNode node = mapper.readTree(text);
-                root.set("root", node);  // FIXME: this is hacky
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        else {
-            String err = msg == null ? " was null" : msg.toString();
-            logger.error(String.format("Unknown Message:  Could not read message %s", err));
-        }
-        return root;
+        return MessageConverter.toNode(msg, this.fieldSelector);
     }
 
     /**
      * Overrides the broker's timeout value with the given timeout and count
      *
-     * Loop will stop once either the timeout has expired or the number of messages of reached is received
+     * Blocks until either the timeout has expired or the given number of messages has been received.  The calling
+     * thread is woken as soon as the count is reached rather than on a polling interval.
      *
      * @param timeout number of milliseconds to wait
-     * @param count number of
+     * @param count number of messages to wait for
      */
     public void listenUntil(Long timeout, Integer count) {
-        Long start = Instant.now().getEpochSecond();
-        Long end = start + (timeout / 1000);
-        Instant endtime = Instant.ofEpochSecond(end);
-        int mod = 0;
-        logger.info("Begin listening for message.  Times out at " + endtime.toString());
-        while(true) {
-            if (this.messageCount >= count || Instant.now().getEpochSecond() > end)
-                break;
-            try {
-                Thread.sleep(1000);
-                mod++;
-                String msg = "Current msg count = %d. Waiting on message for %d seconds...";
-                if (mod % 10 == 0)
-                    logger.info(String.format(msg, this.messageCount, mod));
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long started = System.nanoTime();
+        logger.info("Begin listening for message.  Times out at " + Instant.now().plusMillis(timeout).toString());
+        this.blocked.incrementAndGet();
+        this.countLock.lock();
+        try {
+            long remaining;
+            while (this.getMessageCount() < count && !this.isDone() && (remaining = deadline - System.nanoTime()) > 0) {
+                long wait = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL));
+                if (this.countChanged.awaitNanos(wait) <= 0 && this.getMessageCount() < count) {
+                    String msg = "Current msg count = %d. Waiting on message for %d seconds...";
+                    long waited = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+                    logger.info(String.format(msg, this.getMessageCount(), waited));
+                }
             }
+        } catch (InterruptedException e) {
+            logger.info("Interrupted while listening for messages");
+            Thread.currentThread().interrupt();
+        } finally {
+            this.countLock.unlock();
+            this.blocked.decrementAndGet();
         }
         this.nodeSub.onComplete();
     }
 
+    /**
+     * Non-blocking version of listenUntil(Long, Integer)
+     *
+     * The returned future completes with the message count as soon as count messages have been received, or with
+     * however many were received once timeout expires.  Either way, the listener stops listening once it completes.
+     *
+     * @param timeout number of milliseconds to wait
+     * @param count number of messages to wait for
+     * @return a CompletableFuture of the number of messages received
+     */
+    public CompletableFuture<Integer> listenUntilAsync(Long timeout, Integer count) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        Tuple<Integer, CompletableFuture<Integer>> waiter = new Tuple<>(count, future);
+        this.waiters.add(waiter);
+        // The count may have been reached before we were registered
+        Integer current = this.getMessageCount();
+        if (current >= count || this.isDone())
+            future.complete(current);
+
+        HashedWheelTimer.Timeout expiry = timer.newTimeout(() -> {
+            future.complete(this.getMessageCount());
+        }, timeout, TimeUnit.MILLISECONDS);
+        return future.whenComplete((c, err) -> {
+            expiry.cancel();
+            this.waiters.remove(waiter);
+            this.nodeSub.onComplete();
+        });
+    }
+
+    public CompletableFuture<Integer> listenUntilAsync() {
+        return this.listenUntilAsync(this.broker.getMessageTimeout(), this.broker.getMessageMax());
+    }
+
+    /**
+     * Non-blocking replacement for waiting on a single message
+     *
+     * Unlike listenUntilAsync, this doesn't stop the listener, so any number of these can be outstanding at once.  No
+     * thread is parked while waiting: the shared HashedWheelTimer expires the wait if nothing arrives in time.
+     *
+     * @param timeout number of milliseconds to wait
+     * @return a CompletableFuture of the next handled result, or of a TIMED_OUT result if none arrived in time
+     */
+    public CompletableFuture<MessageResult<T>> nextResult(Long timeout) {
+        CompletableFuture<MessageResult<T>> future = new CompletableFuture<>();
+        if (this.isDone()) {
+            future.complete(MessageResult.timedOut("Listener is no longer listening"));
+            return future;
+        }
+        this.nextWaiters.add(future);
+        HashedWheelTimer.Timeout expiry = timer.newTimeout(() -> {
+            String details = String.format("No message within %d ms", timeout);
+            if (future.complete(MessageResult.timedOut(details)))
+                this.nextWaiters.remove(future);
+        }, timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((r, err) -> expiry.cancel());
+        return future;
+    }
+
+    public CompletableFuture<MessageResult<T>> nextResult() {
+        return this.nextResult(this.broker.getMessageTimeout());
+    }
+
+    private void expireNextWaiters(String details) {
+        CompletableFuture<MessageResult<T>> next;
+        while ((next = this.nextWaiters.poll()) != null)
+            next.complete(MessageResult.timedOut(details));
+    }
+
     public void listenUntil() {
         this.listenUntil(this.broker.getMessageTimeout(), this.broker.getMessageMax());
     }
@@ -394,7 +1026,7 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
         props.put("rhsm_qe", "polarize_bus");
 
         String sel = "rhsm_qe='xunit_importer'";
-        String publishDest = String.format("Consumer.%s.%s", bl.clientID, TOPIC);
+        String publishDest = bl.getConsumerQueue();
         Optional<Connection> rconn = bl.tapIntoMessageBus(sel, bl.createListener(bl.messageParser()), publishDest);
         //Thread.sleep(10000);
         Optional<Connection> sconn = cbp.sendMessage(body, b, new JMSMessageOptions("stoner-polarize", props));
@@ -440,60 +1072,114 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
         return connection;
     }
 
+    /**
+     * Handler for replies from the XUnit importer.  The reply is bound to an XUnitImportResult, and its check decides
+     * the status, so a malformed reply is reported as WRONG_MESSAGE_FORMAT or EMPTY_MESSAGE without any exception being
+     * thrown.
+     *
+     * The info text of a reply that passed is the whole reply.  In lazy mode (see setLazyResults) the reply is bound
+     * straight from the text of the message, without building a tree of it.
+     */
     public static MessageHandler<DefaultResult> xunitMsgHandler() {
-        return (ObjectNode node) -> {
-            JsonNode root = node.get("root");
-            MessageResult<DefaultResult> result = new MessageResult<>(node);
-            result.info = new DefaultResult();
+        return xunitHandler(Collections.emptySet());
+    }
 
-            try {
-                Boolean passed = root.get("status").textValue().equals("passed");
-                if (passed) {
-                    logger.info("In xunitMsgHandler: XUnit importer was successful");
-                    String testrunUrl = root.get("testrun-url").textValue();
-                    logger.info(String.format("Polarion TestRun = %s", testrunUrl));
-                    result.info.setText(JsonHelper.nodeToString(root));
-                    result.setStatus(MessageResult.Status.SUCCESS);
+    /**
+     * Like xunitMsgHandler, but declares only the fields it reads, so the rest of what can be a multi-megabyte reply is
+     * never built into a tree.  Outside of lazy mode this means the info text only holds those fields, so use this one
+     * when nothing else of the reply is needed.
+     */
+    public static MessageHandler<DefaultResult> xunitStatusHandler() {
+        return xunitHandler(Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList("status", "testrun-url",
+                "message", "import-results[].status", "import-results[].suite-name"))));
+    }
+
+    private static MessageHandler<DefaultResult> xunitHandler(Set<String> fields) {
+        return new RawMessageHandler<DefaultResult>() {
+            @Override
+            public MessageResult<DefaultResult> handle(ObjectNode node) {
+                MessageResult<DefaultResult> result = new MessageResult<>(node);
+                result.info = new DefaultResult();
+                JsonNode root = node == null ? null : node.get("root");
+                if (root == null || root.isNull() || root.isMissingNode())
+                    return xunitResult(result, MessageResult.Status.EMPTY_MESSAGE, "No body in message from bus");
+                if (!root.isObject())
+                    return xunitResult(result, MessageResult.Status.WRONG_MESSAGE_FORMAT,
+                            "Unknown format of message from bus");
+                try {
+                    XUnitImportResult reply = XUnitImportResult.read(root);
+                    // The text is only kept for a reply that passed
+                    String text = reply.isPassed() ? JsonHelper.nodeToString(root) : null;
+                    return xunitResult(result, reply, text);
+                } catch (IOException e) {
+                    return xunitResult(result, MessageResult.Status.WRONG_MESSAGE_FORMAT, unreadable(e));
                 }
-                else {
-                    // Figure out which one failed
-                    if (root.has("import-results")) {
-                        JsonNode results = root.get("import-results");
-                        List<String> suites = new ArrayList<>();
-                        results.elements().forEachRemaining(element -> {
-                            if (element.has("status") && !element.get("status").textValue().equals("passed")) {
-                                if (element.has("suite-name")) {
-                                    String suite = element.get("suite-name").textValue();
-                                    suites.add(suite);
-                                    logger.info(suite + " failed to be updated");
-                                }
-                            }
-                        });
-                        result.setStatus(MessageResult.Status.FAILED);
-                        result.setErrorDetails("TestSuites failed to be updated: " + String.join(",", suites));
-                    }
-                    else {
-                        logger.error(root.get("message").asText());
-                        result.setStatus(MessageResult.Status.EMPTY_MESSAGE);
-                        result.setErrorDetails(root.get("message").toString());
-                    }
+            }
+
+            @Override
+            public MessageResult<DefaultResult> handleRaw(String text) {
+                MessageResult<DefaultResult> result = MessageResult.ofText(text);
+                result.info = new DefaultResult();
+                if (text == null || text.trim().isEmpty())
+                    return xunitResult(result, MessageResult.Status.EMPTY_MESSAGE, "No body in message from bus");
+                try {
+                    return xunitResult(result, XUnitImportResult.read(text), text);
+                } catch (IOException e) {
+                    return xunitResult(result, MessageResult.Status.WRONG_MESSAGE_FORMAT, unreadable(e));
                 }
-            } catch (NullPointerException npe) {
-                String err = "Unknown format of message from bus";
-                logger.error(err);
-                result.setStatus(MessageResult.Status.NP_EXCEPTION);
-                result.setErrorDetails(err);
-            } catch (JsonProcessingException e) {
-                String err = "Unable to deserialize JsonNode";
-                logger.error(err);
-                result.setStatus(MessageResult.Status.WRONG_MESSAGE_FORMAT);
-                result.setErrorDetails(err);
-                e.printStackTrace();
             }
-            return result;
+
+            @Override
+            public Set<String> fields() {
+                return fields;
+            }
         };
     }
 
+    private static MessageResult<DefaultResult> xunitResult(MessageResult<DefaultResult> result,
+                                                            XUnitImportResult reply, String text) {
+        MessageResult.Status status = reply.check();
+        switch (status) {
+            case SUCCESS:
+                logger.info("In xunitMsgHandler: XUnit importer was successful");
+                logger.info(String.format("Polarion TestRun = %s", reply.getTestrunUrl()));
+                result.info.setText(text);
+                result.setStatus(status);
+                return result;
+            case FAILED:
+                // Figure out which one failed
+                List<String> suites = reply.getFailedSuites();
+                suites.forEach(suite -> logger.info(suite + " failed to be updated"));
+                result.setStatus(status);
+                result.setErrorDetails("TestSuites failed to be updated: " + String.join(",", suites));
+                return result;
+            case EMPTY_MESSAGE:
+                if (reply.getMessage() != null) {
+                    logger.error(reply.getMessage());
+                    return xunitResult(result, status, reply.getMessage());
+                }
+                return xunitResult(result, status, "No status in message from bus");
+            default:
+                return xunitResult(result, status, "Unknown format of message from bus");
+        }
+    }
+
+    private static String unreadable(IOException e) {
+        String reason = e instanceof JsonProcessingException
+                ? ((JsonProcessingException) e).getOriginalMessage()
+                : e.getMessage();
+        return String.format("Unknown format of message from bus: %s", reason);
+    }
+
+    private static MessageResult<DefaultResult> xunitResult(MessageResult<DefaultResult> result,
+                                                            MessageResult.Status status, String err) {
+        if (status != MessageResult.Status.EMPTY_MESSAGE)
+            logger.error(err);
+        result.setStatus(status);
+        result.setErrorDetails(err);
+        return result;
+    }
+
 
     /**
      * Does 2 things: launches waitForMessage from a Fork/Join pool thread and the main thread waits for user to quit
@@ -518,7 +1204,7 @@ public class CIBusListener<T> extends CIBusClient implements ICIBus, IMessageLis
 
         //String sel = String.format("%s='%s'", args[0], args[1]);
         String sel = "rhsm_qe='testcase_importer'";
-        String publishDest = String.format("Consumer.%s.%s", bl.clientID, TOPIC);
+        String publishDest = bl.getConsumerQueue();
         logger.info(String.format("Topic = %s", publishDest));
         Optional<Connection> rconn = bl.tapIntoMessageBus(sel, bl.createListener(bl.messageParser()), publishDest);
         bl.getResultSubject().subscribe(n -> {
@@ -1,18 +1,27 @@
 package com.github.redhatqe.polarizer.messagebus;
 
+import com.github.redhatqe.polarizer.messagebus.config.BatchOpts;
 import com.github.redhatqe.polarizer.messagebus.config.Broker;
 import com.github.redhatqe.polarizer.messagebus.config.BrokerConfig;
 import com.github.redhatqe.polarizer.messagebus.exceptions.NoConfigFoundError;
 import com.github.redhatqe.polarizer.messagebus.utils.ArgHelper;
 import com.github.redhatqe.polarizer.messagebus.utils.Tuple;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.AsyncCallback;
+import org.apache.activemq.command.ActiveMQMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.jms.*;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 /**
  * Publishes messages to the central CI Message Bus
@@ -21,6 +30,10 @@ import java.util.UUID;
 public class CIBusPublisher extends CIBusClient implements ICIBus {
     public Logger logger = LogManager.getLogger(CIBusListener.class.getName());
     private String publishDest;
+    private Boolean pooled;
+    private Boolean enveloped;
+    private Enveloper enveloper;
+    private final ConcurrentHashMap<String, AtomicInteger> groupSeqs = new ConcurrentHashMap<>();
     public static final String DEFAULT_PUBLISH_DEST = "VirtualTopic.qe.ci.jenkins";
 
     public String getPublishDest() {
@@ -31,6 +44,47 @@ public class CIBusPublisher extends CIBusClient implements ICIBus {
         this.publishDest = publishDest;
     }
 
+    /**
+     * @return true if sends go through a shared ProducerPool.  Defaults to the pool.enabled setting of the broker
+     */
+    public Boolean isPooled() {
+        if (this.pooled == null)
+            return this.broker != null && this.broker.getPool().getEnabled();
+        return pooled;
+    }
+
+    public void setPooled(Boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    /**
+     * @return true if sendMessage packs messages into envelopes.  Defaults to the envelope.enabled setting of the broker
+     */
+    public Boolean isEnveloped() {
+        if (this.enveloped == null)
+            return this.broker != null && this.broker.getEnvelope().getEnabled();
+        return enveloped;
+    }
+
+    public void setEnveloped(Boolean enveloped) {
+        this.enveloped = enveloped;
+    }
+
+    private synchronized Enveloper getEnveloper() {
+        if (this.enveloper == null)
+            this.enveloper = new Enveloper(this, this.broker.getEnvelope());
+        return this.enveloper;
+    }
+
+    /**
+     * Sends the messages waiting in envelopes now, rather than when their linger time is up.  Call this before exiting,
+     * as the linger thread is a daemon and messages still waiting are lost
+     */
+    public void flush() {
+        if (this.enveloper != null)
+            this.enveloper.flush();
+    }
+
     public CIBusPublisher() {
         this("");
     }
@@ -72,6 +126,15 @@ public class CIBusPublisher extends CIBusClient implements ICIBus {
 
 
     public static void setOptionals(Message msg, JMSMessageOptions opts) {
+        setOptionals(msg, opts, opts.lastInGroup ? -1 : opts.groupSeq);
+    }
+
+    /**
+     * Sets the JMSType, properties and message group of msg from opts
+     *
+     * @param seq the JMSXGroupSeq of a grouped message, or null to leave it unset
+     */
+    public static void setOptionals(Message msg, JMSMessageOptions opts, Integer seq) {
         if (!opts.jmsType.equals(""))
             try {
                 msg.setJMSType(opts.jmsType);
@@ -86,6 +149,50 @@ public class CIBusPublisher extends CIBusClient implements ICIBus {
                 e.printStackTrace();
             }
         });
+
+        opts.getGroup().ifPresent(group -> {
+            try {
+                msg.setStringProperty(JMSMessageOptions.GROUP_ID, group);
+                if (seq != null)
+                    msg.setIntProperty(JMSMessageOptions.GROUP_SEQ, seq);
+            } catch (JMSException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Creates the message for a body, in the broker's format and compressed according to its compression settings
+     */
+    Message createMessage(Session session, String text) throws JMSException {
+        return PayloadCodec.encode(session, text, this.broker.getCompression(), this.broker.getFormat());
+    }
+
+    /**
+     * Works out the JMSXGroupSeq of the next message sent with opts.  Unless opts gives a sequence number, a group's
+     * messages are numbered from 1 in the order this publisher sends them.  Closing a group forgets its count, so the
+     * counters only grow with the number of open groups.
+     *
+     * @return the sequence number, or null if the message is not grouped
+     */
+    Integer nextGroupSeq(JMSMessageOptions opts) {
+        Optional<String> group = opts.getGroup();
+        if (!group.isPresent())
+            return null;
+        if (opts.lastInGroup) {
+            this.groupSeqs.remove(group.get());
+            return -1;
+        }
+        if (opts.groupSeq != null)
+            return opts.groupSeq;
+        return this.groupSeqs.computeIfAbsent(group.get(), g -> new AtomicInteger(0)).incrementAndGet();
+    }
+
+    /**
+     * @return the number of groups this publisher has sent to but not closed
+     */
+    public Integer getOpenGroupCount() {
+        return this.groupSeqs.size();
     }
 
     public Optional<Connection>
@@ -95,13 +202,28 @@ public class CIBusPublisher extends CIBusClient implements ICIBus {
 
     /**
      * Sends a JMS Message to a broker
+     *
+     * In pooled mode the send reuses a cached Connection and MessageProducer, and the returned Optional is always
+     * empty since the Connection belongs to the pool and must not be closed by the caller
+     *
+     * In envelope mode the message may wait up to envelope.linger ms to be packed with others sent with the same
+     * options.  The envelope goes out through the pool, and the returned Optional is empty
+     *
      * @param text
      * @param url
      * @param opts
-     * @return
+     * @return the Connection the message was sent on, which the caller is responsible for closing
      */
     public Optional<Connection>
     sendMessage(String text, String url, JMSMessageOptions opts) {
+        if (this.isEnveloped()) {
+            this.getEnveloper().add(text, url, opts);
+            return Optional.empty();
+        }
+        if (this.isPooled()) {
+            this.sendPooled(text, url, opts, 1);
+            return Optional.empty();
+        }
         ActiveMQConnectionFactory factory = this.setupFactory(url, this.broker);
         Connection connection = null;
         MessageProducer producer;
@@ -116,8 +238,8 @@ public class CIBusPublisher extends CIBusClient implements ICIBus {
             Topic dest = session.createTopic(this.publishDest);
             producer = session.createProducer(dest);
 
-            TextMessage msg = session.createTextMessage(text);
-            setOptionals(msg, opts);
+            Message msg = this.createMessage(session, text);
+            setOptionals(msg, opts, this.nextGroupSeq(opts));
 
             producer.send(msg, opts.mode, opts.priority, opts.ttl);
         } catch (JMSException e) {
@@ -126,6 +248,138 @@ public class CIBusPublisher extends CIBusClient implements ICIBus {
         return Optional.ofNullable(connection);
     }
 
+    /**
+     * Gets the ProducerPool for a broker url, creating it with this publisher's broker settings if needed
+     */
+    public ProducerPool getPool(String url) {
+        return ProducerPool.forUrl(url, this.broker, () -> this.setupFactory(url, this.broker));
+    }
+
+    /**
+     * @param count the number of messages packed into text, which is sent as an envelope if more than 1
+     */
+    void sendPooled(String text, String url, JMSMessageOptions opts, Integer count) {
+        ProducerPool pool = this.getPool(url);
+        ProducerPool.PooledSession ps;
+        try {
+            ps = pool.borrow();
+        } catch (JMSException e) {
+            e.printStackTrace();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try {
+            Message msg = this.createMessage(ps.getSession(), text);
+            setOptionals(msg, opts, this.nextGroupSeq(opts));
+            if (count > 1)
+                msg.setIntProperty(Envelope.PROPERTY, count);
+            ps.getProducer(this.publishDest).send(msg, opts.mode, opts.priority, opts.ttl);
+            pool.release(ps);
+        } catch (JMSException e) {
+            pool.invalidate(ps);
+            e.printStackTrace();
+        }
+    }
+
+
+    public CompletableFuture<MessageResult<?>> sendAsync(String text, JMSMessageOptions opts) {
+        return this.sendAsync(text, this.broker.getUrl(), opts);
+    }
+
+    /**
+     * Sends a JMS Message without waiting for the broker to receive it
+     *
+     * The send always goes through the ProducerPool for url, and only blocks while the pool's window is full, ie while
+     * pool.window bytes of earlier sends are still waiting on the broker.  This lets one thread keep many sends in
+     * flight while the window keeps a slow broker from building up an unbounded backlog in the client.
+     *
+     * @param text
+     * @param url
+     * @param opts
+     * @return a future that completes with SUCCESS once the broker has the message, JMS_EXCEPTION if the broker or the
+     *         connection reported an error, or SEND_FAIL if the message could not be sent at all
+     */
+    public CompletableFuture<MessageResult<?>> sendAsync(String text, String url, JMSMessageOptions opts) {
+        CompletableFuture<MessageResult<?>> future = new CompletableFuture<>();
+        ProducerPool pool = this.getPool(url);
+        ProducerPool.PooledSession ps;
+        try {
+            ps = pool.borrow();
+        } catch (JMSException e) {
+            future.complete(MessageResult.ofStatus(MessageResult.Status.JMS_EXCEPTION, e.getMessage()));
+            return future;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.complete(MessageResult.ofStatus(MessageResult.Status.SEND_FAIL, "Interrupted while borrowing a session"));
+            return future;
+        }
+
+        Integer reserved = 0;
+        try {
+            ActiveMQMessage msg = (ActiveMQMessage) this.createMessage(ps.getSession(), text);
+            setOptionals(msg, opts, this.nextGroupSeq(opts));
+            // getSize() only counts the body once it is stored, which ActiveMQ otherwise leaves until the send.  Until
+            // then the encoded BytesMessages of PayloadCodec would all look like empty messages
+            msg.storeContent();
+            reserved = pool.acquireWindow(msg.getSize());
+            Integer bytes = reserved;
+            ActiveMQMessageProducer producer = (ActiveMQMessageProducer) ps.getProducer(this.publishDest);
+            producer.send(msg, opts.mode, opts.priority, opts.ttl, new AsyncCallback() {
+                @Override
+                public void onSuccess() {
+                    pool.releaseWindow(bytes);
+                    future.complete(MessageResult.ofStatus(MessageResult.Status.SUCCESS, ""));
+                }
+
+                @Override
+                public void onException(JMSException e) {
+                    pool.releaseWindow(bytes);
+                    future.complete(MessageResult.ofStatus(MessageResult.Status.JMS_EXCEPTION, e.getMessage()));
+                }
+            });
+            pool.release(ps);
+        } catch (JMSException e) {
+            pool.invalidate(ps);
+            pool.releaseWindow(reserved);
+            future.complete(MessageResult.ofStatus(MessageResult.Status.JMS_EXCEPTION, e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.release(ps);
+            future.complete(MessageResult.ofStatus(MessageResult.Status.SEND_FAIL, "Interrupted while waiting for the send window"));
+        }
+        return future;
+    }
+
+    /**
+     * Sends each body with the same options in transacted batches, using the broker's batch settings
+     */
+    public BatchResult sendBatch(Collection<String> bodies, JMSMessageOptions opts) {
+        return this.sendBatch(bodies.stream().map(b -> new Tuple<>(b, opts)));
+    }
+
+    public BatchResult sendBatch(Stream<Tuple<String, JMSMessageOptions>> messages) {
+        return this.sendBatch(messages, this.broker.getUrl(), this.broker.getBatch());
+    }
+
+    /**
+     * Sends a run of messages over one transacted Session, committing every opts.size messages or opts.interval ms
+     *
+     * This is much faster than a sendMessage per message for persistent messages, since the broker answers once per
+     * commit instead of once per message.  The stream is read lazily, and a batch that fails is retried as a whole.
+     *
+     * @param messages the body and options of each message, in the order they should be sent
+     * @param url
+     * @param opts
+     * @return the number of messages committed, along with any batches that failed every retry
+     */
+    public BatchResult sendBatch(Stream<Tuple<String, JMSMessageOptions>> messages, String url, BatchOpts opts) {
+        try (BatchSender sender = new BatchSender(this, this.setupFactory(url, this.broker), this.publishDest, opts)) {
+            return sender.send(messages.iterator());
+        }
+    }
 
     public static void main(String[] args) throws IOException {
         // Pull off the first arg and the remainder is our options
@@ -0,0 +1,135 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import javax.jms.Message;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which thread parses and handles a Message once the JMS session hands it to the CIBusListener.
+ *
+ * The inline dispatcher does the work right on the session's own dispatch thread.  The pooled dispatcher hands it to a
+ * fixed set of worker threads instead.  Its queue is bounded, and when it is full the session thread does the work
+ * itself, so a slow handler pushes back on the broker rather than piling messages up on the heap.  The partitioned
+ * dispatcher hashes a message property onto single threaded lanes, which keeps messages with the same key in order.
+ *
+ * With any dispatcher but the inline one, a message is acknowledged as soon as it is queued for a worker, before it is
+ * handled.  A crash, a close() or a drain() that times out loses every message still waiting in the queue, and the
+ * broker won't redeliver them.  The client and batch ack modes need to know how a message was handled before they
+ * acknowledge it, so CIBusListener falls back to the inline dispatcher with them.
+ */
+public interface Dispatcher extends AutoCloseable {
+    /**
+     * @param msg the Message about to be processed, for dispatchers that pick a thread based on the message
+     * @param work parses and handles msg
+     */
+    void dispatch(Message msg, Runnable work);
+
+    /**
+     * @return true if work is always run on the calling thread
+     */
+    default Boolean isInline() {
+        return false;
+    }
+
+    @Override
+    default void close() {
+
+    }
+
+    /**
+     * Stops taking new work and waits for the work already handed over to finish
+     *
+     * @param timeout milliseconds to wait
+     * @return true if all work finished in time
+     */
+    default Boolean drain(Long timeout) {
+        return true;
+    }
+
+    /**
+     * @return how many messages are waiting or running on each of the dispatcher's queues, empty if it has none
+     */
+    default List<Integer> getQueueDepths() {
+        return Collections.emptyList();
+    }
+
+    static Dispatcher inline() {
+        return new Dispatcher() {
+            @Override
+            public void dispatch(Message msg, Runnable work) {
+                work.run();
+            }
+
+            @Override
+            public Boolean isInline() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Creates a Dispatcher backed by a fixed pool of daemon threads
+     *
+     * @param threads number of worker threads
+     * @param queueSize how many messages may wait for a worker before the session thread runs the work itself
+     */
+    static Dispatcher pooled(Integer threads, Integer queueSize) {
+        AtomicInteger count = new AtomicInteger(0);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread t = new Thread(r, "polarizer-dispatch-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        return new Dispatcher() {
+            @Override
+            public void dispatch(Message msg, Runnable work) {
+                pool.execute(work);
+            }
+
+            @Override
+            public void close() {
+                pool.shutdown();
+            }
+
+            @Override
+            public List<Integer> getQueueDepths() {
+                return Collections.singletonList(pool.getQueue().size() + pool.getActiveCount());
+            }
+
+            @Override
+            public Boolean drain(Long timeout) {
+                pool.shutdown();
+                try {
+                    return pool.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        };
+    }
+
+    static Dispatcher pooled(Integer threads) {
+        return pooled(threads, threads * 16);
+    }
+
+    /**
+     * Creates a Dispatcher that keeps messages in order per key, see PartitionedDispatcher
+     *
+     * @param property the message property holding the key, eg job-id or JMSXGroupID
+     * @param lanes number of single threaded lanes
+     * @param queueSize how many messages may wait in each lane before the session thread blocks
+     */
+    static Dispatcher partitioned(String property, Integer lanes, Integer queueSize) {
+        return new PartitionedDispatcher(property, lanes, queueSize);
+    }
+
+    static Dispatcher partitioned(String property, Integer lanes) {
+        return partitioned(property, lanes, 64);
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQTextMessage;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The format of an envelope, ie one TextMessage carrying the bodies of several small messages that were sent with the
+ * same options.  The text is a JSON array with each body as a string, and the polarizer_envelope property holds how many
+ * bodies there are.  Keeping each body a string means one malformed body can't spoil the others, and the bodies don't
+ * even have to be JSON.
+ *
+ * CIBusListener unpacks envelopes before parsing, so handlers never see them.  MessageReceiver and ReplyCorrelator do
+ * not, so replies should not be sent from an enveloping publisher.
+ */
+public class Envelope {
+    public static final String PROPERTY = "polarizer_envelope";
+    private static final JsonFactory factory = FieldSelector.mapper.getFactory();
+
+    /**
+     * @return the bodies as the text of an envelope
+     */
+    public static String pack(List<String> bodies) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator gen = factory.createGenerator(writer)) {
+            gen.writeStartArray();
+            for (String body : bodies)
+                gen.writeString(body);
+            gen.writeEndArray();
+        } catch (IOException e) {
+            // A StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * @return the bodies in the text of an envelope
+     */
+    public static List<String> unpack(String text) throws IOException {
+        try (JsonParser parser = factory.createParser(text)) {
+            return unpack(parser);
+        }
+    }
+
+    private static List<String> unpack(JsonParser parser) throws IOException {
+        List<String> bodies = new ArrayList<>();
+        if (parser.nextToken() != JsonToken.START_ARRAY)
+            throw new IOException("An envelope must be a JSON array");
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.VALUE_STRING)
+            bodies.add(parser.getText());
+        if (token != JsonToken.END_ARRAY)
+            throw new IOException(String.format("Expected a string in the envelope, got %s", token));
+        return bodies;
+    }
+
+    public static Boolean isEnvelope(Message msg) throws JMSException {
+        return msg.propertyExists(PROPERTY) && (msg instanceof TextMessage || PayloadCodec.isEncoded(msg));
+    }
+
+    /**
+     * Turns an envelope back into the messages it was packed from.  Each one is a TextMessage with the envelope's
+     * headers and properties (bar polarizer_envelope, content_encoding and content_type), and one of the bodies as its
+     * text.
+     */
+    public static List<Message> unpack(Message msg) throws JMSException {
+        ActiveMQMessage envelope = (ActiveMQMessage) msg;
+        List<String> bodies;
+        try {
+            if (envelope instanceof TextMessage)
+                bodies = unpack(((TextMessage) envelope).getText());
+            else {
+                try (JsonParser parser = PayloadCodec.parser(envelope)) {
+                    bodies = unpack(parser);
+                }
+            }
+
+            List<Message> msgs = new ArrayList<>(bodies.size());
+            for (String body : bodies) {
+                ActiveMQTextMessage m = new ActiveMQTextMessage();
+                copyHeaders(envelope, m);
+                m.setText(body);
+                msgs.add(m);
+            }
+            return msgs;
+        } catch (IOException e) {
+            JMSException err = new JMSException(String.format("Could not unpack envelope: %s", e.getMessage()));
+            err.setLinkedException(e);
+            throw err;
+        }
+    }
+
+    private static void copyHeaders(ActiveMQMessage from, ActiveMQMessage to) throws IOException, JMSException {
+        to.setMessageId(from.getMessageId());
+        to.setDestination(from.getDestination());
+        to.setReplyTo(from.getReplyTo());
+        to.setCorrelationId(from.getCorrelationId());
+        to.setType(from.getType());
+        to.setPriority(from.getPriority());
+        to.setPersistent(from.isPersistent());
+        to.setTimestamp(from.getTimestamp());
+        to.setExpiration(from.getExpiration());
+        to.setRedeliveryCounter(from.getRedeliveryCounter());
+        to.setGroupID(from.getGroupID());
+        to.setGroupSequence(from.getGroupSequence());
+        to.setProperties(from.getProperties());
+        to.removeProperty(PROPERTY);
+        to.removeProperty(PayloadCodec.ENCODING);
+        to.removeProperty(PayloadCodec.CONTENT_TYPE);
+    }
+}
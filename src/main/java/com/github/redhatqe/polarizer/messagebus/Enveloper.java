@@ -0,0 +1,253 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.github.redhatqe.polarizer.messagebus.config.EnvelopeOpts;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs the messages a CIBusPublisher sends into envelopes when they come in faster than the linger time.
+ *
+ * Only messages that would have the same headers and properties can share an envelope, so there is an open envelope
+ * per broker url and set of options.  An envelope is sent when it holds max-messages messages or max-bytes chars, or
+ * linger ms after its first message was added.  A message that arrives when nothing is waiting and nothing was sent
+ * for linger ms is sent on its own right away, so a quiet publisher pays no extra latency.
+ *
+ * The lock only guards the open envelopes.  A full envelope is taken out under it and sent after it is released, by
+ * the thread that filled it, or by the sender pool once its linger time is up.  Each envelope and single message gets a
+ * number in the sequence of its lane, ie its message group (or its set of options if it isn't grouped), and waits for
+ * the ones before it in the lane to go out first.  So a group's messages keep their order and JMSXGroupSeq, while
+ * different groups are sent in parallel.
+ */
+class Enveloper {
+    private static final ScheduledExecutorService lingerer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "polarizer-envelope-linger");
+        t.setDaemon(true);
+        return t;
+    });
+    // Sends the envelopes whose linger time is up, so a slow send doesn't hold up the lingerer
+    private static final ExecutorService sender = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "polarizer-envelope-sender");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final CIBusPublisher publisher;
+    private final EnvelopeOpts opts;
+    private final Map<Key, Pending> open = new LinkedHashMap<>();
+    private final Map<Object, Lane> lanes = new HashMap<>();
+    private long lastAdd = 0;
+
+    Enveloper(CIBusPublisher publisher, EnvelopeOpts opts) {
+        this.publisher = publisher;
+        this.opts = opts;
+    }
+
+    void add(String text, String url, JMSMessageOptions mopts) {
+        List<Outgoing> ready = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Boolean idle = this.open.isEmpty() && now - this.lastAdd >= this.opts.getLinger();
+            this.lastAdd = now;
+            Key key = new Key(url, mopts);
+            Object lane = laneOf(key, url, mopts);
+            // An explicit sequence number or the end of a group has to stay where it is relative to the group's other
+            // messages, so send what is waiting in its lane first and then the message by itself
+            if (mopts.groupSeq != null || mopts.lastInGroup) {
+                for (Pending p : new ArrayList<>(this.open.values()))
+                    if (p.lane.equals(lane))
+                        ready.add(this.take(p));
+                ready.add(this.next(lane, text, url, mopts, 1));
+            }
+            else if (idle)
+                ready.add(this.next(lane, text, url, mopts, 1));
+            else {
+                Pending p = this.open.get(key);
+                if (p == null) {
+                    p = new Pending(key, lane, url, mopts);
+                    Pending scheduled = p;
+                    p.linger = lingerer.schedule(() -> this.expire(scheduled), this.opts.getLinger(),
+                            TimeUnit.MILLISECONDS);
+                    this.open.put(key, p);
+                }
+                p.bodies.add(text);
+                p.chars += text.length();
+                if (p.bodies.size() >= this.opts.getMaxMessages() || p.chars >= this.opts.getMaxBytes())
+                    ready.add(this.take(p));
+            }
+        }
+        ready.forEach(this::send);
+    }
+
+    private void expire(Pending p) {
+        Outgoing out;
+        synchronized (this) {
+            if (this.open.get(p.key) != p)
+                return;
+            out = this.take(p);
+        }
+        sender.execute(() -> this.send(out));
+    }
+
+    /**
+     * Sends every open envelope
+     */
+    void flush() {
+        List<Outgoing> ready = new ArrayList<>();
+        synchronized (this) {
+            for (Pending p : new ArrayList<>(this.open.values()))
+                ready.add(this.take(p));
+        }
+        ready.forEach(this::send);
+    }
+
+    /**
+     * @return the number of messages waiting in open envelopes
+     */
+    synchronized Integer getPendingCount() {
+        return this.open.values().stream().mapToInt(p -> p.bodies.size()).sum();
+    }
+
+    /**
+     * Messages of the same group must go out in order whatever their other options, and ungrouped ones only in order
+     * with those sharing their options
+     */
+    private static Object laneOf(Key key, String url, JMSMessageOptions mopts) {
+        Optional<String> group = mopts.getGroup();
+        return group.isPresent() ? Arrays.asList(url, group.get()) : key;
+    }
+
+    /**
+     * Closes p and gives it its place in its lane.  Called with the lock held
+     */
+    private Outgoing take(Pending p) {
+        this.open.remove(p.key);
+        p.linger.cancel(false);
+        if (p.bodies.size() == 1)
+            return this.next(p.lane, p.bodies.get(0), p.url, p.opts, 1);
+        return this.next(p.lane, Envelope.pack(p.bodies), p.url, p.opts, p.bodies.size());
+    }
+
+    private Outgoing next(Object id, String text, String url, JMSMessageOptions mopts, Integer count) {
+        Lane lane = this.lanes.computeIfAbsent(id, Lane::new);
+        return new Outgoing(lane, lane.issued++, text, url, mopts, count);
+    }
+
+    /**
+     * Waits for the earlier sends of the lane, then sends.  Never called with the lock held
+     */
+    private void send(Outgoing out) {
+        Lane lane = out.lane;
+        try {
+            lane.await(out.seq);
+            this.publisher.sendPooled(out.text, out.url, out.opts, out.count);
+        } finally {
+            lane.done(out.seq);
+            synchronized (this) {
+                if (lane.isIdle())
+                    this.lanes.remove(lane.id, lane);
+            }
+        }
+    }
+
+    private static class Pending {
+        final Key key;
+        final Object lane;
+        final String url;
+        final JMSMessageOptions opts;
+        final List<String> bodies = new ArrayList<>();
+        int chars = 0;
+        ScheduledFuture<?> linger;
+
+        Pending(Key key, Object lane, String url, JMSMessageOptions opts) {
+            this.key = key;
+            this.lane = lane;
+            this.url = url;
+            this.opts = opts;
+        }
+    }
+
+    /**
+     * An envelope, or a single message, that has its place in its lane and is ready to go
+     */
+    private static class Outgoing {
+        final Lane lane;
+        final long seq;
+        final String text;
+        final String url;
+        final JMSMessageOptions opts;
+        final Integer count;
+
+        Outgoing(Lane lane, long seq, String text, String url, JMSMessageOptions opts, Integer count) {
+            this.lane = lane;
+            this.seq = seq;
+            this.text = text;
+            this.url = url;
+            this.opts = opts;
+            this.count = count;
+        }
+    }
+
+    /**
+     * The sequence of sends that must go out in order.  issued is only touched under the Enveloper's lock, and sent
+     * under the Lane's own
+     */
+    private static class Lane {
+        final Object id;
+        long issued = 0;
+        long sent = 0;
+
+        Lane(Object id) {
+            this.id = id;
+        }
+
+        synchronized void await(long seq) {
+            Boolean interrupted = false;
+            while (this.sent != seq) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    // Giving up the turn would leave every later send of the lane waiting, so finish it first
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        synchronized void done(long seq) {
+            this.sent = seq + 1;
+            this.notifyAll();
+        }
+
+        synchronized Boolean isIdle() {
+            return this.sent == this.issued;
+        }
+    }
+
+    /**
+     * What two messages must have in common to share an envelope
+     */
+    private static class Key {
+        final List<Object> parts;
+
+        Key(String url, JMSMessageOptions opts) {
+            this.parts = Arrays.asList(url, opts.jmsType, new HashMap<>(opts.props), opts.mode, opts.priority,
+                    opts.ttl, opts.getGroup().orElse(null));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && this.parts.equals(((Key) o).parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.parts.hashCode();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pulls a chosen set of fields out of a JSON document with a streaming JsonParser, skipping over everything else
+ * without building nodes for it.
+ *
+ * Fields are given as dotted paths.  A segment ending in [] means every element of that array, for example
+ * <pre>
+ *   status
+ *   testrun-url
+ *   import-results[].status
+ *   import-results[].suite-name
+ * </pre>
+ * A path that ends at an object or array keeps that whole subtree.  A FieldSelector is immutable once compiled and can
+ * be shared across threads.
+ */
+public class FieldSelector {
+    // ObjectMapper (and the JsonFactory it owns) are thread safe once configured, so one instance serves every parse
+    static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Selection root;
+
+    private FieldSelector(Selection root) {
+        this.root = root;
+    }
+
+    /**
+     * @param paths the fields to keep
+     * @return a FieldSelector for paths
+     */
+    public static FieldSelector compile(Collection<String> paths) {
+        Selection root = new Selection();
+        for (String path : paths) {
+            Selection current = root;
+            for (String segment : path.split("\\.")) {
+                if (segment.endsWith("[]")) {
+                    current = current.field(segment.substring(0, segment.length() - 2));
+                    if (current.elements == null)
+                        current.elements = new Selection();
+                    current = current.elements;
+                }
+                else
+                    current = current.field(segment);
+            }
+            current.whole = true;
+        }
+        return new FieldSelector(root);
+    }
+
+    public JsonNode select(String text) throws IOException {
+        return this.select(new StringReader(text));
+    }
+
+    public JsonNode select(Reader reader) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(reader)) {
+            return this.select(parser);
+        }
+    }
+
+    public JsonNode select(InputStream is) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(is)) {
+            return this.select(parser);
+        }
+    }
+
+    /**
+     * @param parser a parser positioned before the document
+     * @return the selected fields, or null if the document is empty
+     */
+    public JsonNode select(JsonParser parser) throws IOException {
+        if (parser.nextToken() == null)
+            return null;
+        return this.select(parser, this.root);
+    }
+
+    private JsonNode select(JsonParser parser, Selection sel) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT && !sel.whole && !sel.fields.isEmpty()) {
+            ObjectNode out = JsonNodeFactory.instance.objectNode();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                Selection child = sel.fields.get(name);
+                parser.nextToken();
+                if (child == null)
+                    parser.skipChildren();
+                else
+                    out.set(name, this.select(parser, child));
+            }
+            return out;
+        }
+        if (token == JsonToken.START_ARRAY && !sel.whole && sel.elements != null) {
+            ArrayNode out = JsonNodeFactory.instance.arrayNode();
+            while (parser.nextToken() != JsonToken.END_ARRAY)
+                out.add(this.select(parser, sel.elements));
+            return out;
+        }
+        // Either the whole value was asked for, or it isn't shaped like the paths expected.  Both keep it as is
+        return mapper.readTree(parser);
+    }
+
+    private static class Selection {
+        Boolean whole = false;
+        Map<String, Selection> fields = new HashMap<>();
+        Selection elements;
+
+        Selection field(String name) {
+            return this.fields.computeIfAbsent(name, k -> new Selection());
+        }
+    }
+}
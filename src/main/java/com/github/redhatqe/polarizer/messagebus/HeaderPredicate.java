@@ -0,0 +1,75 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import org.apache.activemq.ActiveMQMessageTransformation;
+import org.apache.activemq.filter.BooleanExpression;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.selector.SelectorParser;
+
+import javax.jms.InvalidSelectorException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * A test on the headers and properties of a Message that never looks at its body.  CIBusListener runs these before a
+ * message is parsed (see CIBusListener.setFilter and addRoute), so a message that fails them costs no more than a few
+ * property lookups.
+ *
+ * The simple tests compare a single property.  selector compiles a full JMS selector once, and evaluates it on the
+ * client, as the SubscriptionEngine does.
+ */
+@FunctionalInterface
+public interface HeaderPredicate {
+    Boolean test(Message msg) throws JMSException;
+
+    default HeaderPredicate and(HeaderPredicate other) {
+        return msg -> this.test(msg) && other.test(msg);
+    }
+
+    default HeaderPredicate or(HeaderPredicate other) {
+        return msg -> this.test(msg) || other.test(msg);
+    }
+
+    default HeaderPredicate negate() {
+        return msg -> !this.test(msg);
+    }
+
+    static HeaderPredicate any() {
+        return msg -> true;
+    }
+
+    /**
+     * @return a test that the property is set to value.  Non-string properties are compared by their string form
+     */
+    static HeaderPredicate property(String name, String value) {
+        return msg -> value.equals(msg.getStringProperty(name));
+    }
+
+    static HeaderPredicate hasProperty(String name) {
+        return msg -> msg.propertyExists(name);
+    }
+
+    /**
+     * @return a test that the JMSType header is type
+     */
+    static HeaderPredicate type(String type) {
+        return msg -> type.equals(msg.getJMSType());
+    }
+
+    /**
+     * @param selector a JMS selector, eg "rhsm_qe='xunit_importer' AND type LIKE 'test%'"
+     * @throws InvalidSelectorException if the selector does not parse
+     */
+    static HeaderPredicate selector(String selector) throws InvalidSelectorException {
+        BooleanExpression expr = SelectorParser.parse(selector);
+        return msg -> {
+            // A context is cheap, and making one per test lets the predicate be shared by several consumer threads
+            MessageEvaluationContext ctx = new MessageEvaluationContext();
+            ctx.setMessageReference(ActiveMQMessageTransformation.transformMessage(msg, null));
+            try {
+                return expr.matches(ctx);
+            } finally {
+                ctx.clear();
+            }
+        };
+    }
+}
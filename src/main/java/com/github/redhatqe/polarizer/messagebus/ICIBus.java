@@ -1,8 +1,10 @@
 package com.github.redhatqe.polarizer.messagebus;
 
 import com.github.redhatqe.polarizer.messagebus.config.Broker;
+import com.github.redhatqe.polarizer.messagebus.config.PrefetchOpts;
 import com.github.redhatqe.polarizer.reporter.configuration.Serializer;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQPrefetchPolicy;
 import org.apache.activemq.ActiveMQSslConnectionFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -64,15 +66,24 @@ public interface ICIBus {
     }
 
     default ActiveMQConnectionFactory setupFactory(String url, Broker broker) {
+        ActiveMQConnectionFactory factory;
         if(url.contains("ssl:")) {
-            ActiveMQSslConnectionFactory factory = new ActiveMQSslConnectionFactory(url);
-            this.authByKeys(factory, broker);
-            return factory;
+            ActiveMQSslConnectionFactory sslFactory = new ActiveMQSslConnectionFactory(url);
+            this.authByKeys(sslFactory, broker);
+            factory = sslFactory;
         }
         else {
-            ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
+            factory = new ActiveMQConnectionFactory(url);
             this.authByPassword(factory, broker);
-            return factory;
         }
+        this.setupPrefetch(factory, broker.getPrefetch());
+        factory.setProducerWindowSize(broker.getPool().getWindow());
+        return factory;
+    }
+
+    default void setupPrefetch(ActiveMQConnectionFactory factory, PrefetchOpts opts) {
+        ActiveMQPrefetchPolicy policy = factory.getPrefetchPolicy();
+        policy.setQueuePrefetch(opts.getQueue());
+        policy.setTopicPrefetch(opts.getTopic());
     }
 }
@@ -22,19 +22,28 @@ public interface IMessageListener {
      * @return MessageHandler lambda
      */
     static <T> MessageHandler<T> defaultHandler() {
-        return (ObjectNode node) -> {
-            MessageResult<T> result = new MessageResult<>();
-            if (node == null) {
-                System.err.println("No message was received");
-                result.setStatus(MessageResult.Status.NO_MESSAGE);
+        return new RawMessageHandler<T>() {
+            @Override
+            public MessageResult<T> handle(ObjectNode node) {
+                MessageResult<T> result = new MessageResult<>();
+                if (node == null) {
+                    System.err.println("No message was received");
+                    result.setStatus(MessageResult.Status.NO_MESSAGE);
+                    return result;
+                }
+
+                // The body is serialized from the node only if someone calls getBody()
+                result.setStatus(MessageResult.Status.SUCCESS);
+                result.setNode(node);
                 return result;
             }
 
-            String body = node.toString();
-            result.setStatus(MessageResult.Status.SUCCESS);
-            result.setBody(body);
-            result.setNode(node);
-            return result;
+            @Override
+            public MessageResult<T> handleRaw(String text) {
+                if (text == null)
+                    System.err.println("No message was received");
+                return MessageResult.ofText(text);
+            }
         };
     }
 
@@ -46,6 +55,7 @@ public interface IMessageListener {
      * thread it is running on will actually call the Supplier and thus block, however, the main thread from which
      * getCIMessage itself is called will continue as normal.
      *
+     * @deprecated use MessageReceiver.receive
      * @return ObjectNode that is the parsed message
      */
     @Deprecated
@@ -80,6 +90,10 @@ public interface IMessageListener {
 
     MessageListener createListener(MessageParser parser);
 
+    /**
+     * @deprecated use MessageReceiver.receive, which doesn't leave a Connection for the caller to close
+     */
+    @Deprecated
     Optional<Tuple<Connection, Message>> waitForMessage(String selector);
 
     Optional<Connection> tapIntoMessageBus(String selector, MessageListener listener, String address);
@@ -3,16 +3,29 @@ package com.github.redhatqe.polarizer.messagebus;
 import javax.jms.DeliveryMode;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 /**
  * Various settings for the JMS message
+ *
+ * Messages can be put in a JMS message group, either by naming the group with setGroup, or with groupBy, which uses
+ * the value of one of the message's properties (eg the job id) as the group.  The broker sends every message of a
+ * group to the same consumer until the group is closed, so a job's messages stay in order even when several listeners
+ * share the queue, while different jobs are spread across them.
  */
 public class JMSMessageOptions {
+    public static final String GROUP_ID = "JMSXGroupID";
+    public static final String GROUP_SEQ = "JMSXGroupSeq";
+
     String jmsType = "";
     Map<String, String> props = new HashMap<>();
     Integer mode = DeliveryMode.NON_PERSISTENT;
     Integer priority = 3;
     Long ttl = 180000L;
+    String groupID = null;
+    String groupBy = null;
+    Integer groupSeq = null;
+    Boolean lastInGroup = false;
 
     public JMSMessageOptions(String type, Map<String, String> properties) {
         this.jmsType = type;
@@ -23,7 +36,76 @@ public class JMSMessageOptions {
         this.jmsType = type;
     }
 
+    /**
+     * Copies orig, including its own copy of the properties, so properties added to the copy don't show up in orig
+     */
+    public JMSMessageOptions(JMSMessageOptions orig) {
+        this.jmsType = orig.jmsType;
+        this.props = new HashMap<>(orig.props);
+        this.mode = orig.mode;
+        this.priority = orig.priority;
+        this.ttl = orig.ttl;
+        this.groupID = orig.groupID;
+        this.groupBy = orig.groupBy;
+        this.groupSeq = orig.groupSeq;
+        this.lastInGroup = orig.lastInGroup;
+    }
+
     public void addProperty(String key, String val) {
         this.props.put(key, val);
     }
+
+    /**
+     * @param mode DeliveryMode.PERSISTENT or DeliveryMode.NON_PERSISTENT (the default)
+     */
+    public JMSMessageOptions setDeliveryMode(Integer mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * Puts the message in the named group
+     */
+    public JMSMessageOptions setGroup(String groupID) {
+        this.groupID = groupID;
+        return this;
+    }
+
+    /**
+     * Puts the message in the group named by the value of one of its properties, eg groupBy("job-id").  A message
+     * without the property is not grouped.  An explicit setGroup takes precedence.
+     */
+    public JMSMessageOptions groupBy(String property) {
+        this.groupBy = property;
+        return this;
+    }
+
+    /**
+     * Sets JMSXGroupSeq explicitly.  When not set, a CIBusPublisher numbers a group's messages 1, 2, 3...
+     */
+    public JMSMessageOptions setGroupSeq(Integer seq) {
+        this.groupSeq = seq;
+        return this;
+    }
+
+    /**
+     * Marks the messages sent with these options as the last of their group.  They are sent with a JMSXGroupSeq of -1,
+     * which tells the broker to unpin the group from its consumer, so a later group of the same name can go to any
+     * consumer.
+     */
+    public JMSMessageOptions setLastInGroup(Boolean last) {
+        this.lastInGroup = last;
+        return this;
+    }
+
+    /**
+     * @return the group the message is in, or empty if it is not grouped
+     */
+    public Optional<String> getGroup() {
+        if (this.groupID != null)
+            return Optional.of(this.groupID);
+        if (this.groupBy != null)
+            return Optional.ofNullable(this.props.get(this.groupBy));
+        return Optional.empty();
+    }
 }
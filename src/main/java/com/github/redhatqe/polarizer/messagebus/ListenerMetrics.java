@@ -0,0 +1,147 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Message counters for a CIBusListener.  The counters are LongAdders, so the JMS dispatch threads can bump them without
+ * contending with each other, and any thread can read them without taking a lock.  A read is not an atomic snapshot
+ * across counters, but each counter on its own is exact.
+ */
+public class ListenerMetrics {
+    private final LongAdder received = new LongAdder();
+    private final LongAdder parsed = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+    private final Map<MessageResult.Status, LongAdder> results = new EnumMap<>(MessageResult.Status.class);
+    private volatile Supplier<List<Integer>> queueDepths = Collections::emptyList;
+
+    public ListenerMetrics() {
+        // Filled up front so that the map is never structurally modified after construction
+        for (MessageResult.Status s : MessageResult.Status.values())
+            this.results.put(s, new LongAdder());
+    }
+
+    void recordReceived() {
+        this.received.increment();
+    }
+
+    void recordParsed() {
+        this.parsed.increment();
+    }
+
+    void recordDropped() {
+        this.dropped.increment();
+    }
+
+    void recordFiltered() {
+        this.filtered.increment();
+    }
+
+    /**
+     * Counts a message the handler has finished with, under the status it produced
+     */
+    void recordHandled(MessageResult.Status status) {
+        this.results.get(status == null ? MessageResult.Status.NO_MESSAGE : status).increment();
+        this.handled.increment();
+    }
+
+    /**
+     * Adds the time it took to parse and handle one message
+     */
+    void recordServiceTime(long nanos) {
+        this.serviceNanos.add(nanos);
+    }
+
+    /**
+     * Counts a message that failed before it got to the handler, eg a JMSException while parsing
+     */
+    void recordFailed(MessageResult.Status status) {
+        this.results.get(status).increment();
+    }
+
+    /** @return messages delivered to the listener by the broker */
+    public long getReceived() {
+        return this.received.sum();
+    }
+
+    /** @return messages successfully turned into an ObjectNode */
+    public long getParsed() {
+        return this.parsed.sum();
+    }
+
+    /** @return messages the MessageHandler has returned a MessageResult for */
+    public long getHandled() {
+        return this.handled.sum();
+    }
+
+    /** @return messages that were received but thrown away, eg because the listener was no longer listening */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * @return messages thrown away by the listener's header filter, or by the handler's prefilter, before their body
+     * was parsed
+     */
+    public long getFiltered() {
+        return this.filtered.sum();
+    }
+
+    /** @return total nanoseconds spent parsing and handling messages, across all threads */
+    public long getServiceNanos() {
+        return this.serviceNanos.sum();
+    }
+
+    /**
+     * Reports the dispatcher's queue depths along with the counters
+     */
+    void watchQueues(Supplier<List<Integer>> depths) {
+        this.queueDepths = depths;
+    }
+
+    /** @return messages waiting or running on each of the dispatcher's queues, eg the lanes of a partitioned one */
+    public List<Integer> getQueueDepths() {
+        return this.queueDepths.get();
+    }
+
+    /** @return number of messages that ended up with the given status */
+    public long getCount(MessageResult.Status status) {
+        return this.results.get(status).sum();
+    }
+
+    /**
+     * @return all counters by name, with the per-status counts as status.NAME and queue depths as queue.N
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snap = new LinkedHashMap<>();
+        snap.put("received", this.getReceived());
+        snap.put("parsed", this.getParsed());
+        snap.put("handled", this.getHandled());
+        snap.put("dropped", this.getDropped());
+        snap.put("filtered", this.getFiltered());
+        snap.put("serviceMillis", TimeUnit.NANOSECONDS.toMillis(this.getServiceNanos()));
+        this.results.forEach((k, v) -> {
+            long count = v.sum();
+            if (count > 0)
+                snap.put("status." + k.name(), count);
+        });
+        List<Integer> depths = this.getQueueDepths();
+        for (int i = 0; i < depths.size(); i++)
+            snap.put("queue." + i, (long) depths.get(i));
+        return snap;
+    }
+
+    @Override
+    public String toString() {
+        return this.snapshot().toString();
+    }
+}
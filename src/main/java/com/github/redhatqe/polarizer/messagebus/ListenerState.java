@@ -0,0 +1,17 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+/**
+ * Lifecycle of a CIBusListener.  Transitions only go forward: CREATED -> LISTENING -> COMPLETED -> CLOSED, though a
+ * listener may skip straight to COMPLETED or CLOSED from any earlier state.  The one exception is a tapIntoMessageBus
+ * that fails to connect, which puts the listener back to CREATED so it can be tried again.
+ */
+public enum ListenerState {
+    CREATED,        // Constructed, but not yet tapped into the message bus
+    LISTENING,      // Connected and passing messages to the handler
+    COMPLETED,      // Done listening (eg listenUntil returned).  Messages still arriving are dropped
+    CLOSED;         // Connection has been closed
+
+    public Boolean isBefore(ListenerState other) {
+        return this.ordinal() < other.ordinal();
+    }
+}
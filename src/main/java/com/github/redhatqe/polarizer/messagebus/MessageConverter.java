@@ -0,0 +1,201 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+
+/**
+ * Turns JMS Messages into the Jackson ObjectNode that MessageHandlers work on.  Shared by CIBusListener and anything
+ * else that hands messages to a MessageHandler, eg the ReplyCorrelator
+ *
+ * Compressed and binary bodies (see PayloadCodec) are decoded transparently, and end up under "root" just like text.
+ * The other kinds of message are converted without going through the ObjectMapper: the entries of a MapMessage become
+ * the fields of the node, the body of a StreamMessage becomes an array under "root", and the body of a plain
+ * BytesMessage is parsed as UTF-8 JSON, or else kept as binary.  See toJson for how each JMS value is converted.
+ */
+public class MessageConverter {
+    private static final Logger logger = LogManager.getLogger(MessageConverter.class.getName());
+    private static final ObjectMapper mapper = FieldSelector.mapper;
+    private static final JsonNodeFactory nodes = JsonNodeFactory.instance;
+
+    /**
+     * Converts a Message to an ObjectNode.  The body of a TextMessage is put under a "root" key
+     *
+     * @param msg Message received from a Message bus
+     * @param selector if not null, only the fields it selects are parsed out of a JSON body
+     * @return the converted message
+     */
+    public static ObjectNode toNode(Message msg, FieldSelector selector) throws JMSException {
+        ObjectNode root = mapper.createObjectNode();
+        if (msg instanceof MapMessage) {
+            MapMessage mm = (MapMessage) msg;
+            Enumeration names = mm.getMapNames();
+            while(names.hasMoreElements()) {
+                String name = (String) names.nextElement();
+                root.set(name, toJson(mm.getObject(name)));
+            }
+            return root;
+        }
+        else if (msg instanceof TextMessage) {
+            TextMessage tm = (TextMessage) msg;
+            // Walking the properties isn't free, and is only done to log them.  To act on them, use a HeaderPredicate
+            Enumeration props = logger.isInfoEnabled() ? tm.getPropertyNames() : Collections.emptyEnumeration();
+            while(props.hasMoreElements()) {
+                String p = props.nextElement().toString();
+                if (p.equals("type")) {
+                    String val = msg.getStringProperty("type");
+                    logger.info(String.format("Message prop: type=%s", val));
+                }
+                else if (p.equals("rhsm_qe")) {
+                    String val = msg.getStringProperty("rhsm_qe");
+                    logger.info(String.format("Message prop: rhsm_qe=%s", val));
+                }
+                else if (p.equals("job-id")) {
+                    String val = msg.getStringProperty("job-id");
+                    logger.info(String.format("Message prop: job-id=%s", val));
+                }
+            }
+            String text = tm.getText();
+            logger.info(text);
+            try {
+                JsonNode node;
+                if (selector != null)
+                    node = selector.select(text);
+                else
+                    node = mapper.readTree(text);
+                root.set("root", node);  // FIXME: this is hacky
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        else if (PayloadCodec.isEncoded(msg)) {
+            // Decompressed straight into the parser for its content_type, so the text of a large body is never held
+            // in a String
+            try (JsonParser parser = PayloadCodec.parser(msg)) {
+                JsonNode node;
+                if (selector != null)
+                    node = selector.select(parser);
+                else
+                    node = mapper.readTree(parser);
+                root.set("root", node);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        else if (msg instanceof BytesMessage)
+            root.set("root", readBytes(msg, selector));
+        else if (msg instanceof StreamMessage) {
+            StreamMessage sm = (StreamMessage) msg;
+            sm.reset();
+            ArrayNode body = root.putArray("root");
+            try {
+                while (true)
+                    body.add(toJson(sm.readObject()));
+            } catch (MessageEOFException e) {
+                // The only way to find the end of a StreamMessage
+            }
+        }
+        else if (msg instanceof ObjectMessage)
+            root.set("root", toJson(((ObjectMessage) msg).getObject()));
+        else {
+            String err = msg == null ? " was null" : msg.toString();
+            logger.error(String.format("Unknown Message:  Could not read message %s", err));
+        }
+        return root;
+    }
+
+    public static ObjectNode toNode(Message msg) throws JMSException {
+        return toNode(msg, null);
+    }
+
+    /**
+     * Converts a value of a MapMessage, StreamMessage or ObjectMessage to a JsonNode.  The JMS primitive types, String
+     * and byte[] map straight onto the matching node (a char becomes a one character string), and Maps, Collections
+     * and arrays are converted entry by entry.  Only other objects, which can only come from an ObjectMessage, are
+     * left to the ObjectMapper
+     */
+    public static JsonNode toJson(Object value) {
+        if (value == null)
+            return nodes.nullNode();
+        if (value instanceof String)
+            return nodes.textNode((String) value);
+        if (value instanceof Integer)
+            return nodes.numberNode((Integer) value);
+        if (value instanceof Long)
+            return nodes.numberNode((Long) value);
+        if (value instanceof Boolean)
+            return nodes.booleanNode((Boolean) value);
+        if (value instanceof Double)
+            return nodes.numberNode((Double) value);
+        if (value instanceof Float)
+            return nodes.numberNode((Float) value);
+        if (value instanceof Short)
+            return nodes.numberNode((Short) value);
+        if (value instanceof Byte)
+            return nodes.numberNode((Byte) value);
+        if (value instanceof Character)
+            return nodes.textNode(value.toString());
+        if (value instanceof byte[])
+            return nodes.binaryNode((byte[]) value);
+        if (value instanceof Map) {
+            ObjectNode node = nodes.objectNode();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet())
+                node.set(String.valueOf(e.getKey()), toJson(e.getValue()));
+            return node;
+        }
+        if (value instanceof Collection) {
+            ArrayNode node = nodes.arrayNode(((Collection<?>) value).size());
+            for (Object o : (Collection<?>) value)
+                node.add(toJson(o));
+            return node;
+        }
+        if (value instanceof Object[]) {
+            ArrayNode node = nodes.arrayNode(((Object[]) value).length);
+            for (Object o : (Object[]) value)
+                node.add(toJson(o));
+            return node;
+        }
+        return mapper.valueToTree(value);
+    }
+
+    /**
+     * Reads the body of a BytesMessage with no content_type or content_encoding.  Clients such as STOMP ones send JSON
+     * this way, so the body is parsed as UTF-8 JSON first.  If it isn't JSON the raw bytes are returned
+     */
+    private static JsonNode readBytes(Message msg, FieldSelector selector) throws JMSException {
+        try (JsonParser parser = PayloadCodec.parser(msg)) {
+            return selector != null ? selector.select(parser) : mapper.readTree(parser);
+        } catch (JsonProcessingException e) {
+            logger.debug(String.format("BytesMessage body is not JSON: %s", e.getOriginalMessage()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return nodes.nullNode();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream is = PayloadCodec.open(msg)) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) != -1)
+                out.write(buf, 0, n);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return nodes.binaryNode(out.toByteArray());
+    }
+}
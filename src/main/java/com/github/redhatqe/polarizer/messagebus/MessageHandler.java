@@ -2,7 +2,116 @@ package com.github.redhatqe.polarizer.messagebus;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+
 @FunctionalInterface
 public interface MessageHandler<T> {
     MessageResult<T> handle(ObjectNode node);
+
+    /**
+     * The JSON fields of the message body this handler looks at, in the path syntax of FieldSelector.  When this is
+     * not empty, the listener only pulls these fields out of the body instead of building a tree of the whole thing.
+     *
+     * @return the fields to parse, or an empty set for the whole body
+     */
+    default Set<String> fields() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * A test the raw body of a message must pass before it is parsed and handed to this handler.  Messages that fail
+     * it are thrown away by the listener
+     *
+     * @return the test, or empty to handle every message
+     */
+    default Optional<BodyPredicate> prefilter() {
+        return Optional.empty();
+    }
+
+    /**
+     * Wraps a handler so that it declares the fields it needs
+     *
+     * @param fields paths of the fields hdlr reads
+     * @param hdlr the handler to wrap
+     * @return a MessageHandler that behaves like hdlr, but whose fields() returns fields
+     */
+    static <T> MessageHandler<T> selecting(Collection<String> fields, MessageHandler<T> hdlr) {
+        Set<String> selected = Collections.unmodifiableSet(new LinkedHashSet<>(fields));
+        return new MessageHandler<T>() {
+            @Override
+            public MessageResult<T> handle(ObjectNode node) {
+                return hdlr.handle(node);
+            }
+
+            @Override
+            public Set<String> fields() {
+                return selected;
+            }
+
+            @Override
+            public Optional<BodyPredicate> prefilter() {
+                return hdlr.prefilter();
+            }
+        };
+    }
+
+    static <T> MessageHandler<T> selecting(MessageHandler<T> hdlr, String... fields) {
+        return selecting(Arrays.asList(fields), hdlr);
+    }
+
+    /**
+     * Wraps a handler so that it only sees the messages whose body passes a test.  A RawMessageHandler stays one
+     *
+     * @param hdlr the handler to wrap
+     * @param when the test, eg BodyPredicate.fieldEquals("status", "failed")
+     * @return a MessageHandler that behaves like hdlr, but whose prefilter() returns when
+     */
+    static <T> MessageHandler<T> prefiltering(MessageHandler<T> hdlr, BodyPredicate when) {
+        Optional<BodyPredicate> prefilter = Optional.of(when);
+        if (hdlr instanceof RawMessageHandler) {
+            RawMessageHandler<T> raw = (RawMessageHandler<T>) hdlr;
+            return new RawMessageHandler<T>() {
+                @Override
+                public MessageResult<T> handle(ObjectNode node) {
+                    return raw.handle(node);
+                }
+
+                @Override
+                public MessageResult<T> handleRaw(String text) {
+                    return raw.handleRaw(text);
+                }
+
+                @Override
+                public Set<String> fields() {
+                    return raw.fields();
+                }
+
+                @Override
+                public Optional<BodyPredicate> prefilter() {
+                    return prefilter;
+                }
+            };
+        }
+        return new MessageHandler<T>() {
+            @Override
+            public MessageResult<T> handle(ObjectNode node) {
+                return hdlr.handle(node);
+            }
+
+            @Override
+            public Set<String> fields() {
+                return hdlr.fields();
+            }
+
+            @Override
+            public Optional<BodyPredicate> prefilter() {
+                return prefilter;
+            }
+        };
+    }
 }
@@ -0,0 +1,232 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.github.redhatqe.polarizer.messagebus.config.Broker;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking receive of messages, as a replacement for CIBusListener.waitForMessage.
+ *
+ * waitForMessage opens a new connection for every call and hands it back for the caller to close.  A MessageReceiver
+ * instead opens one Connection the first time it is used, and keeps one Session and MessageConsumer per selector, so
+ * calling receive in a loop only costs the receive itself.  Everything is closed by close(), or one selector's consumer
+ * by release().  If the connection fails, the next call opens a new one.
+ *
+ * Each selector's consumer is used by one thread at a time.  Threads receiving on different selectors don't block
+ * each other.
+ *
+ * Note that consumers on a Topic only see messages sent after they were created, so a consumer kept open between calls
+ * also catches a reply that arrives while the caller is busy elsewhere.
+ */
+public class MessageReceiver implements ICIBus, AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(MessageReceiver.class.getName());
+
+    private final Broker broker;
+    private final String destination;
+    private final Boolean isTopic;
+    private final String clientID;
+    private final Map<String, CachedConsumer> consumers = new ConcurrentHashMap<>();
+    private Connection connection;
+    private volatile Boolean closed = false;
+
+    /**
+     * @param broker the broker to receive from
+     * @param destination name of the Topic or Queue
+     * @param isTopic true if destination is a Topic
+     */
+    public MessageReceiver(Broker broker, String destination, Boolean isTopic) {
+        this.broker = broker;
+        this.destination = destination;
+        this.isTopic = isTopic;
+        this.clientID = CIBusClient.POLARIZE_CLIENT_ID + "." + UUID.randomUUID();
+    }
+
+    /**
+     * Receives from the VirtualTopic.qe.ci.> topic, like waitForMessage does
+     */
+    public MessageReceiver(Broker broker) {
+        this(broker, CIBusClient.TOPIC, true);
+    }
+
+    /**
+     * Waits for one message matching the selector
+     *
+     * @param selector the JMS selector, or "" for any message
+     * @param timeout milliseconds to wait
+     * @return the message, or empty if none arrived in time
+     */
+    public Optional<Message> receive(String selector, Long timeout) {
+        List<Message> msgs = this.receive(selector, 1, timeout);
+        return msgs.isEmpty() ? Optional.empty() : Optional.of(msgs.get(0));
+    }
+
+    /**
+     * Waits for up to max messages matching the selector, returning early once max have arrived
+     *
+     * @param selector the JMS selector, or "" for any message
+     * @param max most messages to return
+     * @param timeout milliseconds to wait for all of them
+     * @return the messages that arrived within timeout, possibly none
+     */
+    public List<Message> receive(String selector, Integer max, Long timeout) {
+        if (selector == null)
+            selector = "";
+        List<Message> msgs = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        CachedConsumer cached = null;
+        try {
+            cached = this.getConsumer(selector);
+            synchronized (cached) {
+                while (msgs.size() < max) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    // receive(0) would block forever, so once time is up only take what is already here
+                    Message msg = remaining > 0 ? cached.consumer.receive(remaining) : cached.consumer.receiveNoWait();
+                    if (msg == null)
+                        break;
+                    msgs.add(msg);
+                }
+            }
+        } catch (JMSException e) {
+            logger.error(String.format("Receive with selector of %s failed: %s", selector, e.getMessage()));
+            if (cached != null) {
+                // After a reset, another thread may already have cached a new consumer for the selector
+                this.consumers.remove(selector, cached);
+                cached.close();
+            }
+        }
+        return msgs;
+    }
+
+    /**
+     * Waits for one message and runs it through a handler
+     *
+     * @return the handler's result, or a TIMED_OUT result if no message arrived in time
+     */
+    public <T> MessageResult<T> receive(String selector, Long timeout, MessageHandler<T> handler) {
+        Optional<Message> msg = this.receive(selector, timeout);
+        if (!msg.isPresent())
+            return MessageResult.timedOut(String.format("No message for %s within %d ms", selector, timeout));
+        try {
+            return handler.handle(MessageConverter.toNode(msg.get()));
+        } catch (JMSException e) {
+            MessageResult<T> result = new MessageResult<>();
+            result.setStatus(MessageResult.Status.JMS_EXCEPTION);
+            result.setErrorDetails(e.getMessage());
+            return result;
+        }
+    }
+
+    /**
+     * Closes the cached consumer for a selector.  The next receive on it creates a new one
+     */
+    public void release(String selector) {
+        CachedConsumer cached = this.consumers.remove(selector == null ? "" : selector);
+        if (cached != null)
+            cached.close();
+    }
+
+    /**
+     * @return number of selectors that currently have a cached consumer
+     */
+    public Integer getConsumerCount() {
+        return this.consumers.size();
+    }
+
+    private CachedConsumer getConsumer(String selector) throws JMSException {
+        CachedConsumer cached = this.consumers.get(selector);
+        if (cached != null)
+            return cached;
+        synchronized (this) {
+            if (this.closed)
+                throw new javax.jms.IllegalStateException("MessageReceiver is closed");
+            cached = this.consumers.get(selector);
+            if (cached == null) {
+                Session session = this.getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+                Destination dest = this.isTopic ? session.createTopic(this.destination)
+                                                : session.createQueue(this.destination);
+                MessageConsumer consumer;
+                if (selector.equals(""))
+                    consumer = session.createConsumer(dest);
+                else
+                    consumer = session.createConsumer(dest, selector);
+                cached = new CachedConsumer(session, consumer);
+                this.consumers.put(selector, cached);
+                logger.debug(String.format("Created consumer with selector of:\n%s", selector));
+            }
+            return cached;
+        }
+    }
+
+    private Connection getConnection() throws JMSException {
+        if (this.connection == null) {
+            Connection conn = this.setupFactory(this.broker.getUrl(), this.broker).createConnection();
+            conn.setClientID(this.clientID);
+            conn.setExceptionListener(exc -> {
+                logger.error(exc.getMessage());
+                this.reset(conn);
+            });
+            conn.start();
+            this.connection = conn;
+        }
+        return this.connection;
+    }
+
+    /**
+     * Throws away a broken connection and everything cached on it
+     */
+    private synchronized void reset(Connection broken) {
+        if (this.connection != broken)
+            return;
+        this.consumers.clear();
+        this.connection = null;
+        try {
+            broken.close();
+        } catch (JMSException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+            this.consumers.values().forEach(CachedConsumer::close);
+            this.consumers.clear();
+            if (this.connection != null) {
+                try {
+                    this.connection.close();
+                } catch (JMSException e) {
+                    logger.error(e.getMessage());
+                }
+                this.connection = null;
+            }
+        }
+    }
+
+    private static class CachedConsumer {
+        final Session session;
+        final MessageConsumer consumer;
+
+        CachedConsumer(Session session, MessageConsumer consumer) {
+            this.session = session;
+            this.consumer = consumer;
+        }
+
+        void close() {
+            try {
+                this.session.close();
+            } catch (JMSException e) {
+                logger.error(e.getMessage());
+            }
+        }
+    }
+}
@@ -1,13 +1,30 @@
 package com.github.redhatqe.polarizer.messagebus;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
+/**
+ * The outcome of handling a message.
+ *
+ * A MessageResult can be backed by the raw payload (text or UTF-8 bytes) instead of a parsed tree.  In that case the
+ * ObjectNode is only parsed the first time getNode() is called, and the body string is only decoded the first time
+ * getBody() is called.  Both are cached after that.  A result that is only checked with getStatus() never pays for
+ * either.
+ */
 public class MessageResult<T> {
-    private ObjectNode node;
-    private Status status;
-    private String errorDetails = "";
-    private String body;
+    private volatile ObjectNode node;
+    // Both can be changed by getNode() on another thread, see materialize
+    private volatile Status status;
+    private volatile String errorDetails = "";
+    private volatile String body;
+    private byte[] payload;
+    // true when the node should be parsed from body/payload on demand, ie for ofText and ofBytes
+    private Boolean fromPayload = false;
     // FIXME:  Instead of ProcessingInfo, this should be a MessageResult<T>
     public T info;
 
@@ -29,10 +46,92 @@ public class MessageResult<T> {
         this.info = t;
     }
 
+    /**
+     * Creates a result backed by the text of a message.  The node, when asked for, has the same shape parseMessage
+     * gives, ie the parsed text under a "root" key
+     */
+    public static <T> MessageResult<T> ofText(String text) {
+        MessageResult<T> result = new MessageResult<>();
+        result.body = text;
+        result.fromPayload = true;
+        result.status = (text == null) ? Status.NO_MESSAGE : Status.SUCCESS;
+        return result;
+    }
+
+    /**
+     * Creates a result backed by the UTF-8 bytes of a message
+     */
+    public static <T> MessageResult<T> ofBytes(byte[] bytes) {
+        MessageResult<T> result = new MessageResult<>();
+        result.payload = bytes;
+        result.fromPayload = true;
+        result.status = (bytes == null) ? Status.NO_MESSAGE : Status.SUCCESS;
+        return result;
+    }
+
+    /**
+     * Creates the result a wait completes with when no message arrived in time
+     *
+     * @param details why the wait gave up, for getErrorDetails
+     */
+    public static <T> MessageResult<T> timedOut(String details) {
+        return ofStatus(Status.TIMED_OUT, details);
+    }
+
+    /**
+     * Creates a result with no message, eg the outcome of a send
+     *
+     * @param details for getErrorDetails, empty if there was no error
+     */
+    public static <T> MessageResult<T> ofStatus(Status status, String details) {
+        MessageResult<T> result = new MessageResult<>();
+        result.status = status;
+        result.errorDetails = details;
+        return result;
+    }
+
+    /**
+     * Gets the node, parsing it from the payload the first time if this result was built from one.  A payload that turns
+     * out not to be JSON changes getStatus() to WRONG_MESSAGE_FORMAT, so a result built with ofText or ofBytes may only
+     * report SUCCESS until someone calls this
+     */
     public Optional<ObjectNode> getNode() {
-        return Optional.ofNullable(this.node);
+        ObjectNode n = this.node;
+        if (n == null && this.fromPayload && (this.payload != null || this.body != null))
+            n = this.materialize();
+        return Optional.ofNullable(n);
+    }
+
+    /**
+     * @return true if the node has already been built, so getNode() will not parse anything
+     */
+    public Boolean isMaterialized() {
+        return this.node != null;
+    }
+
+    private synchronized ObjectNode materialize() {
+        if (this.node != null)
+            return this.node;
+        try {
+            JsonNode parsed;
+            if (this.payload != null)
+                parsed = FieldSelector.mapper.readTree(this.payload);
+            else
+                parsed = FieldSelector.mapper.readTree(this.body);
+            ObjectNode root = JsonNodeFactory.instance.objectNode();
+            root.set("root", parsed);
+            this.node = root;
+        } catch (IOException e) {
+            // The details go first, so anyone who sees the new status also sees why
+            this.errorDetails = e.getMessage();
+            this.status = Status.WRONG_MESSAGE_FORMAT;
+        }
+        return this.node;
     }
 
+    /**
+     * @return the status, which getNode() changes to WRONG_MESSAGE_FORMAT if a payload it parses is malformed
+     */
     public Status getStatus() { return this.status; }
 
     public void setNode(ObjectNode node) {
@@ -51,8 +150,19 @@ public class MessageResult<T> {
         this.errorDetails = errorDetails;
     }
 
+    /**
+     * Gets the body, decoding the payload bytes or serializing the node the first time if no body was set
+     */
     public String getBody() {
-        return body;
+        String b = this.body;
+        if (b == null) {
+            if (this.payload != null)
+                b = new String(this.payload, StandardCharsets.UTF_8);
+            else if (this.node != null)
+                b = this.node.toString();
+            this.body = b;
+        }
+        return b;
     }
 
     public void setBody(String body) {
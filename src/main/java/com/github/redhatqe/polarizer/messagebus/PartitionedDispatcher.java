@@ -0,0 +1,123 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Dispatcher that keeps messages with the same key in order, while messages with different keys run in parallel.
+ *
+ * The key is a message property, eg job-id or JMSXGroupID.  Its hash picks one of N lanes, and each lane is a single
+ * thread working through its own queue, so two messages with the same key are always handled one after the other in
+ * the order the consumer received them.  Messages without the property have nothing to stay in order with, so they
+ * are spread over the lanes round robin.
+ *
+ * A full lane blocks the session thread until it has room, rather than running the work on the caller like the pooled
+ * dispatcher does, since that would let a message overtake the ones queued before it.
+ *
+ * Order is kept per consumer.  With several consumers on the queue, use JMSXGroupID so that the broker sends every
+ * message of a group to the same consumer.
+ *
+ * Like the pooled dispatcher, this one lets the session acknowledge a message once it is queued in a lane, so the
+ * messages waiting in the lanes are lost if the listener stops without draining them (see Dispatcher).
+ */
+class PartitionedDispatcher implements Dispatcher {
+    private static final Logger logger = LogManager.getLogger(PartitionedDispatcher.class.getName());
+    private static final AtomicInteger instances = new AtomicInteger(0);
+
+    private final String property;
+    private final List<ThreadPoolExecutor> lanes = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    PartitionedDispatcher(String property, Integer lanes, Integer queueSize) {
+        this.property = property;
+        int id = instances.incrementAndGet();
+        for (int i = 0; i < lanes; i++) {
+            String name = String.format("polarizer-lane-%d-%d", id, i);
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    r -> {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    },
+                    PartitionedDispatcher::waitForRoom);
+            this.lanes.add(lane);
+        }
+    }
+
+    private static void waitForRoom(Runnable work, ThreadPoolExecutor lane) {
+        if (lane.isShutdown())
+            throw new RejectedExecutionException("Dispatcher has been closed");
+        try {
+            lane.getQueue().put(work);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room in a lane", e);
+        }
+    }
+
+    @Override
+    public void dispatch(Message msg, Runnable work) {
+        this.lanes.get(this.laneFor(msg)).execute(work);
+    }
+
+    /**
+     * @return the index of the lane that handles msg
+     */
+    int laneFor(Message msg) {
+        String key = null;
+        try {
+            key = msg.getStringProperty(this.property);
+        } catch (JMSException e) {
+            logger.error(String.format("Could not read %s: %s", this.property, e.getMessage()));
+        }
+        int hash = key == null ? this.next.getAndIncrement() : spread(key.hashCode());
+        return Math.floorMod(hash, this.lanes.size());
+    }
+
+    /**
+     * Mixes the high bits of a hashCode into the low ones, as the keys are often ids that only differ in a few chars
+     */
+    private static int spread(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    @Override
+    public List<Integer> getQueueDepths() {
+        List<Integer> depths = new ArrayList<>();
+        for (ThreadPoolExecutor lane : this.lanes)
+            depths.add(lane.getQueue().size() + lane.getActiveCount());
+        return depths;
+    }
+
+    @Override
+    public void close() {
+        this.lanes.forEach(ThreadPoolExecutor::shutdown);
+    }
+
+    @Override
+    public Boolean drain(Long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.close();
+        try {
+            for (ThreadPoolExecutor lane : this.lanes) {
+                if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                    return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,217 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.github.redhatqe.polarizer.messagebus.config.CompressionOpts;
+import com.github.redhatqe.polarizer.messagebus.config.Format;
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.util.ByteSequence;
+
+import javax.jms.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+/**
+ * Encodes message bodies for a CIBusPublisher, and opens encoded bodies as a stream or parser for the listeners.
+ *
+ * A body that is not plain text JSON is sent as a BytesMessage.  Its content_type property names a binary format (see
+ * Format), and its content_encoding property names the compression codec.  A body can have either or both, and is
+ * compressed after it is turned into the binary format.  gzip is the usual gzip format, and deflate is the zlib format
+ * (as in HTTP).  A compressed body without a content_type holds UTF-8 JSON.
+ */
+public class PayloadCodec {
+    public static final String ENCODING = "content_encoding";
+    public static final String CONTENT_TYPE = "content_type";
+    private static final JsonFactory jsonFactory = FieldSelector.mapper.getFactory();
+    private static final SmileFactory smileFactory = new SmileFactory();
+    private static final CBORFactory cborFactory = new CBORFactory();
+
+    public static Message encode(Session session, String text, CompressionOpts opts) throws JMSException {
+        return encode(session, text, opts, Format.JSON);
+    }
+
+    /**
+     * Creates the message for a body.  The body is turned into format, and compressed if opts asks for it and the body
+     * is at least opts.threshold chars
+     *
+     * @param text the body as JSON text
+     */
+    public static Message encode(Session session, String text, CompressionOpts opts, Format format)
+            throws JMSException {
+        CompressionOpts.Codec codec = opts.getCodec();
+        if (codec != CompressionOpts.Codec.NONE && text.length() < opts.getThreshold())
+            codec = CompressionOpts.Codec.NONE;
+        if (codec == CompressionOpts.Codec.NONE && format == Format.JSON)
+            return session.createTextMessage(text);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() / 4);
+        try {
+            encode(text, format, codec, opts.getLevel(), out);
+        } catch (IOException e) {
+            // out is a ByteArrayOutputStream, so this is a body that isn't JSON and can't be put into format.  Send it
+            // as text instead, which is what a listener would expect of it anyway
+            if (format != Format.JSON)
+                return encode(session, text, opts, Format.JSON);
+            throw new java.lang.IllegalStateException(e);
+        }
+        BytesMessage msg = session.createBytesMessage();
+        msg.writeBytes(out.toByteArray());
+        if (format != Format.JSON)
+            msg.setStringProperty(CONTENT_TYPE, format.getContentType());
+        if (codec != CompressionOpts.Codec.NONE)
+            msg.setStringProperty(ENCODING, codec.getName());
+        return msg;
+    }
+
+    /**
+     * Writes text to out in the given format, compressed with codec.  Neither the UTF-8 nor the binary form of the
+     * whole body is held in memory: the text is streamed from one to the other.
+     */
+    public static void encode(String text, Format format, CompressionOpts.Codec codec, Integer level,
+                              OutputStream out) throws IOException {
+        Deflater deflater = null;
+        OutputStream zout;
+        if (codec == CompressionOpts.Codec.GZIP)
+            zout = new LeveledGZIPOutputStream(out, level);
+        else if (codec == CompressionOpts.Codec.DEFLATE) {
+            deflater = new Deflater(level);
+            zout = new DeflaterOutputStream(out, deflater, 8192);
+        }
+        else
+            zout = out;
+
+        try {
+            if (format == Format.JSON) {
+                try (Writer writer = new OutputStreamWriter(zout, StandardCharsets.UTF_8)) {
+                    writer.write(text);
+                }
+            }
+            else {
+                try (JsonParser parser = jsonFactory.createParser(text);
+                     JsonGenerator gen = factory(format).createGenerator(zout)) {
+                    while (parser.nextToken() != null)
+                        gen.copyCurrentEvent(parser);
+                }
+            }
+        } finally {
+            // A DeflaterOutputStream doesn't end a Deflater it was given
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * Writes the UTF-8 of text, compressed with codec, to out
+     */
+    public static void compress(String text, CompressionOpts.Codec codec, Integer level, OutputStream out)
+            throws IOException {
+        encode(text, Format.JSON, codec, level, out);
+    }
+
+    public static byte[] compress(String text, CompressionOpts.Codec codec, Integer level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() / 4);
+        compress(text, codec, level, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the JsonFactory that reads and writes format
+     */
+    public static JsonFactory factory(Format format) {
+        switch (format) {
+            case SMILE:
+                return smileFactory;
+            case CBOR:
+                return cborFactory;
+            default:
+                return jsonFactory;
+        }
+    }
+
+    /**
+     * @return true if msg has an encoded body, that has to be read with open or parser
+     */
+    public static Boolean isEncoded(Message msg) throws JMSException {
+        return msg instanceof BytesMessage && (msg.propertyExists(ENCODING) || msg.propertyExists(CONTENT_TYPE));
+    }
+
+    /**
+     * @return the format of an encoded body, from its content_type
+     */
+    public static Format getFormat(Message msg) throws JMSException {
+        return Format.fromContentType(msg.getStringProperty(CONTENT_TYPE));
+    }
+
+    /**
+     * Opens a parser on the body of a message that isEncoded, for the format its content_type names.  The caller must
+     * close the parser
+     */
+    public static JsonParser parser(Message msg) throws JMSException, IOException {
+        return factory(getFormat(msg)).createParser(open(msg));
+    }
+
+    /**
+     * Opens the decompressed body of a message that isEncoded.  For an ActiveMQ message the stream reads straight
+     * from the buffer the message arrived in.  The caller must close the stream
+     */
+    public static InputStream open(Message msg) throws JMSException {
+        String encoding = msg.getStringProperty(ENCODING);
+        InputStream raw;
+        if (msg instanceof ActiveMQBytesMessage && !((ActiveMQBytesMessage) msg).isCompressed()) {
+            ByteSequence content = ((ActiveMQBytesMessage) msg).getContent();
+            raw = content == null
+                    ? new ByteArrayInputStream(new byte[0])
+                    : new ByteArrayInputStream(content.getData(), content.getOffset(), content.getLength());
+        }
+        else {
+            BytesMessage bm = (BytesMessage) msg;
+            bm.reset();
+            byte[] body = new byte[(int) bm.getBodyLength()];
+            bm.readBytes(body);
+            raw = new ByteArrayInputStream(body);
+        }
+        if (encoding == null)
+            return raw;
+        try {
+            return decompress(raw, CompressionOpts.Codec.fromName(encoding));
+        } catch (IOException | IllegalArgumentException e) {
+            JMSException err = new JMSException(String.format("Could not decompress %s body: %s", encoding,
+                    e.getMessage()));
+            if (e instanceof IOException)
+                err.setLinkedException((IOException) e);
+            throw err;
+        }
+    }
+
+    public static InputStream decompress(InputStream in, CompressionOpts.Codec codec) throws IOException {
+        switch (codec) {
+            case GZIP:
+                return new GZIPInputStream(in, 8192);
+            case DEFLATE:
+                return new InflaterInputStream(in, new Inflater(), 8192) {
+                    // As with the Deflater, an Inflater that was passed in is not ended by close
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        this.inf.end();
+                    }
+                };
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * GZIPOutputStream has no constructor that takes a level
+     */
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, Integer level) throws IOException {
+            super(out, 8192);
+            this.def.setLevel(level);
+        }
+    }
+}
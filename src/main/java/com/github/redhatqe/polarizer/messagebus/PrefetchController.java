@@ -0,0 +1,139 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.github.redhatqe.polarizer.messagebus.config.PrefetchOpts;
+import com.github.redhatqe.polarizer.messagebus.utils.HashedWheelTimer;
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ConsumerControl;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retunes the prefetch of a CIBusListener's queue consumers from how long its handler takes per message.
+ *
+ * Every interval, the controller works out the mean time spent parsing and handling a message since the last look, and
+ * sets each consumer's prefetch to however many messages that handler gets through in buffer-time, between min and max.
+ * A fast handler gets a deep prefetch so it never waits on the broker, and a slow one gets a shallow prefetch so
+ * messages aren't parked behind it while other consumers are free.  If messages are buffered but none were handled
+ * during the interval, a handler is stuck on something long, and the prefetch drops straight to min.
+ *
+ * The new prefetch is sent to the broker as a ConsumerControl.  It only changes how many more messages the broker pushes
+ * to the consumer; messages it has already pushed stay there.  To avoid churn, a new value is only sent when it is at
+ * least double or at most half of the current one.
+ *
+ * This relies on ActiveMQ internals: ConsumerControl and ActiveMQConnection.asyncSendPacket aren't part of JMS, and
+ * only the broker's view of the prefetch changes.  The consumer keeps the prefetch it was made with, and every ack mode
+ * but auto batches its acks by that number (eg dups-ok acks after about half of it).  If the broker's prefetch shrank
+ * below that, it would stop dispatching before the consumer acked, so CIBusListener only uses the controller with the
+ * auto ack mode.
+ */
+class PrefetchController {
+    private static final Logger logger = LogManager.getLogger(PrefetchController.class.getName());
+
+    private final ActiveMQConnection connection;
+    private final ActiveMQDestination destination;
+    private final List<MessageConsumer> consumers;
+    private final ListenerMetrics metrics;
+    private final PrefetchOpts opts;
+    private final HashedWheelTimer timer;
+    private volatile Integer prefetch;
+    private volatile Boolean stopped = false;
+    private long lastHandled;
+    private long lastNanos;
+
+    /**
+     * @param connection the connection the consumers were made on
+     * @param destination the queue the consumers read from
+     * @param consumers the consumers to tune
+     * @param metrics the listener's metrics, for the handler time
+     */
+    PrefetchController(ActiveMQConnection connection, ActiveMQDestination destination, List<MessageConsumer> consumers,
+                       ListenerMetrics metrics, PrefetchOpts opts, HashedWheelTimer timer) {
+        this.connection = connection;
+        this.destination = destination;
+        this.consumers = consumers;
+        this.metrics = metrics;
+        this.opts = opts;
+        this.timer = timer;
+        this.prefetch = opts.getQueue();
+    }
+
+    void start() {
+        this.lastHandled = this.metrics.getHandled();
+        this.lastNanos = this.metrics.getServiceNanos();
+        this.schedule();
+    }
+
+    void stop() {
+        this.stopped = true;
+    }
+
+    /**
+     * @return the prefetch most recently given to the consumers
+     */
+    Integer getPrefetch() {
+        return prefetch;
+    }
+
+    private void schedule() {
+        if (!this.stopped)
+            this.timer.newTimeout(this::adjust, this.opts.getInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    private void adjust() {
+        try {
+            long handled = this.metrics.getHandled();
+            long nanos = this.metrics.getServiceNanos();
+            long count = handled - this.lastHandled;
+            long spent = nanos - this.lastNanos;
+            this.lastHandled = handled;
+            this.lastNanos = nanos;
+
+            int buffered = 0;
+            for (MessageConsumer consumer : this.consumers)
+                buffered += ((ActiveMQMessageConsumer) consumer).getMessageSize();
+
+            Integer target;
+            if (count == 0)
+                target = buffered > 0 ? this.opts.getMin() : this.prefetch;
+            else {
+                double serviceNanos = Math.max(1.0, spent / (double) count);
+                double fits = TimeUnit.MILLISECONDS.toNanos(this.opts.getBufferTime()) / serviceNanos;
+                target = (int) Math.max(this.opts.getMin(), Math.min(this.opts.getMax(), Math.ceil(fits)));
+            }
+            if (target * 2 <= this.prefetch || target >= this.prefetch * 2
+                    || (!target.equals(this.prefetch) && (target.equals(this.opts.getMin())
+                                                          || target.equals(this.opts.getMax()))))
+                this.apply(target, count, spent, buffered);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Could not adjust prefetch: %s", e.getMessage()));
+        } finally {
+            this.schedule();
+        }
+    }
+
+    private void apply(Integer target, long count, long spent, int buffered) {
+        for (MessageConsumer consumer : this.consumers) {
+            ActiveMQMessageConsumer amq = (ActiveMQMessageConsumer) consumer;
+            ConsumerControl control = new ConsumerControl();
+            control.setConsumerId(amq.getConsumerId());
+            control.setDestination(this.destination);
+            control.setPrefetch(target);
+            try {
+                this.connection.asyncSendPacket(control);
+            } catch (JMSException e) {
+                logger.error(String.format("Could not send prefetch of %d: %s", target, e.getMessage()));
+                return;
+            }
+        }
+        String msg = "Prefetch %d -> %d (%d handled in %d ms, %d buffered)";
+        logger.info(String.format(msg, this.prefetch, target, count, TimeUnit.NANOSECONDS.toMillis(spent), buffered));
+        this.prefetch = target;
+    }
+}
@@ -0,0 +1,268 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.github.redhatqe.polarizer.messagebus.config.Broker;
+import com.github.redhatqe.polarizer.messagebus.config.PoolOpts;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Keeps one long-lived Connection per broker url and settings, and a bounded set of Sessions on it, each of which
+ * caches a MessageProducer per destination.  Sessions are not thread safe, so a caller borrows one for the duration of
+ * a send and releases it afterwards.  Sessions that sit unused longer than the idle timeout are closed, and once no Session
+ * is left the Connection is closed too.  The next borrow simply opens a new one.
+ */
+public class ProducerPool implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(ProducerPool.class.getName());
+    private static final Map<List<Object>, ProducerPool> pools = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "polarizer-pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String url;
+    private final ActiveMQConnectionFactory factory;
+    private final String clientID;
+    private final Integer size;
+    private final Long idleTimeout;
+    private final Semaphore permits;
+    private final Integer windowSize;
+    private final Semaphore window;
+    private final BlockingDeque<PooledSession> idle = new LinkedBlockingDeque<>();
+    private final ScheduledFuture<?> eviction;
+    private volatile Connection connection;
+    private volatile Boolean closed = false;
+    private List<Object> key;
+
+    public ProducerPool(String url, ActiveMQConnectionFactory factory, String clientID, PoolOpts opts) {
+        this.url = url;
+        this.factory = factory;
+        this.clientID = clientID;
+        this.size = opts.getSize();
+        this.idleTimeout = opts.getIdleTimeout();
+        this.permits = new Semaphore(this.size, true);
+        this.windowSize = Math.max(opts.getWindow(), 1);
+        this.window = new Semaphore(this.windowSize);
+        long period = Math.max(this.idleTimeout / 2, 1000L);
+        this.eviction = evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the pool for a broker url, creating it with the given factory if this is the first use of the url with the
+     * broker's settings.  Publishers whose brokers differ in credentials, keystores or pool settings don't share a pool
+     *
+     * @param url broker url to connect to
+     * @param broker settings the pool is keyed by, along with url (see Broker.getConnectionKey)
+     * @param factory called only when the pool does not exist yet, so the factory isn't built on every send
+     * @return the shared ProducerPool for url and broker
+     */
+    public static ProducerPool forUrl(String url, Broker broker, Supplier<ActiveMQConnectionFactory> factory) {
+        return pools.compute(broker.getConnectionKey(url), (k, pool) -> {
+            if (pool != null && !pool.closed)
+                return pool;
+            String id = String.format("%s.pool.%s", CIBusClient.POLARIZE_CLIENT_ID, UUID.randomUUID());
+            ProducerPool created = new ProducerPool(url, factory.get(), id, broker.getPool());
+            created.key = k;
+            return created;
+        });
+    }
+
+    /**
+     * Closes every pool, eg from a shutdown hook
+     */
+    public static void closeAll() {
+        pools.values().forEach(ProducerPool::close);
+        pools.clear();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Integer getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of Sessions currently parked in the pool
+     */
+    public Integer getIdleCount() {
+        return this.idle.size();
+    }
+
+    /**
+     * @return bytes left in the async send window
+     */
+    public Integer getWindowAvailable() {
+        return this.window.availablePermits();
+    }
+
+    /**
+     * Reserves room in the window for an async send of the given size, blocking until enough earlier sends have been
+     * acknowledged by the broker.  A message larger than the whole window waits for the window to empty.
+     *
+     * @return the number of bytes reserved, to be handed back to releaseWindow once the broker has answered
+     */
+    public Integer acquireWindow(Integer bytes) throws InterruptedException {
+        int reserved = Math.max(1, Math.min(bytes, this.windowSize));
+        this.window.acquire(reserved);
+        return reserved;
+    }
+
+    public void releaseWindow(Integer reserved) {
+        this.window.release(reserved);
+    }
+
+    /**
+     * Returns the shared Connection, (re)connecting if there is none
+     */
+    public synchronized Connection getConnection() throws JMSException {
+        if (this.closed)
+            throw new javax.jms.IllegalStateException("ProducerPool for " + this.url + " is closed");
+        if (this.connection == null) {
+            Connection conn = this.factory.createConnection();
+            conn.setClientID(this.clientID);
+            conn.setExceptionListener(exc -> {
+                logger.error(exc.getMessage());
+                this.reset(conn);
+            });
+            conn.start();
+            this.connection = conn;
+        }
+        return this.connection;
+    }
+
+    /**
+     * Borrows a Session, blocking if all of them are in use.  Every borrow must be followed by either a release or an
+     * invalidate of the same PooledSession.
+     */
+    public PooledSession borrow() throws JMSException, InterruptedException {
+        this.permits.acquire();
+        try {
+            PooledSession ps;
+            while ((ps = this.idle.pollFirst()) != null) {
+                if (ps.connection == this.connection)
+                    return ps;
+                ps.close();
+            }
+            Connection conn = this.getConnection();
+            return new PooledSession(conn, conn.createSession(false, Session.AUTO_ACKNOWLEDGE));
+        } catch (JMSException | RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a healthy Session back to the pool.  The most recently used Session is handed out first, so the ones at
+     * the tail of the deque are the ones that age out.
+     */
+    public void release(PooledSession ps) {
+        ps.lastUsed = System.currentTimeMillis();
+        if (this.closed || ps.connection != this.connection)
+            ps.close();
+        else
+            this.idle.offerFirst(ps);
+        this.permits.release();
+    }
+
+    /**
+     * Drops a Session that threw, instead of returning it to the pool
+     */
+    public void invalidate(PooledSession ps) {
+        ps.close();
+        this.permits.release();
+    }
+
+    private synchronized void reset(Connection failed) {
+        if (this.connection != failed)
+            return;
+        this.connection = null;
+        this.idle.forEach(PooledSession::close);
+        this.idle.clear();
+        try {
+            failed.close();
+        } catch (JMSException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - this.idleTimeout;
+        Iterator<PooledSession> it = this.idle.descendingIterator();
+        while (it.hasNext()) {
+            PooledSession ps = it.next();
+            if (ps.lastUsed > cutoff)
+                break;
+            if (this.idle.removeLastOccurrence(ps))
+                ps.close();
+        }
+        synchronized (this) {
+            if (this.connection != null && this.idle.isEmpty() && this.permits.availablePermits() == this.size) {
+                logger.debug(String.format("Closing idle pooled connection to %s", this.url));
+                this.reset(this.connection);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.eviction.cancel(false);
+        if (this.key != null)
+            pools.remove(this.key, this);
+        synchronized (this) {
+            if (this.connection != null)
+                this.reset(this.connection);
+        }
+    }
+
+    /**
+     * A Session borrowed from the pool along with the producers it has already created
+     */
+    public static class PooledSession {
+        private final Connection connection;
+        private final Session session;
+        private final Map<String, MessageProducer> producers = new HashMap<>();
+        private volatile Long lastUsed = System.currentTimeMillis();
+
+        PooledSession(Connection conn, Session session) {
+            this.connection = conn;
+            this.session = session;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        /**
+         * Returns the cached producer for a topic, creating it on first use
+         */
+        public MessageProducer getProducer(String topic) throws JMSException {
+            MessageProducer producer = this.producers.get(topic);
+            if (producer == null) {
+                producer = this.session.createProducer(this.session.createTopic(topic));
+                this.producers.put(topic, producer);
+            }
+            return producer;
+        }
+
+        void close() {
+            try {
+                this.session.close();
+            } catch (JMSException e) {
+                logger.debug(e.getMessage());
+            }
+        }
+    }
+}
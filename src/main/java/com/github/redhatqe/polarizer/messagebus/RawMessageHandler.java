@@ -0,0 +1,9 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+/**
+ * A MessageHandler that can also work from the raw text of a message.  When the listener is in lazy mode, text messages
+ * are given to handleRaw without being parsed first, and the handler only parses what it needs (if anything).
+ */
+public interface RawMessageHandler<T> extends MessageHandler<T> {
+    MessageResult<T> handleRaw(String text);
+}
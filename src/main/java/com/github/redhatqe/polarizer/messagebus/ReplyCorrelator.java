@@ -0,0 +1,179 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.redhatqe.polarizer.messagebus.utils.HashedWheelTimer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Matches replies to requests by a correlation property, eg job-id.
+ *
+ * One SubscriptionEngine subscription receives every reply.  Each await() registers a CompletableFuture under the
+ * correlation key it expects, and an incoming reply resolves the future stored under its key with a single map lookup.
+ * A future whose reply doesn't arrive in time completes with a MessageResult whose status is TIMED_OUT, so thousands
+ * of outstanding requests cost one connection and no parked threads.
+ */
+public class ReplyCorrelator implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(ReplyCorrelator.class.getName());
+    public static final String CORRELATION_ID = "JMSCorrelationID";
+
+    private final String property;
+    private final Map<String, Pending<?>> pending = new ConcurrentHashMap<>();
+    private final SubscriptionEngine.Subscription subscription;
+    private final LongAdder unmatched = new LongAdder();
+    private final HashedWheelTimer timer;
+
+    /**
+     * @param engine the engine whose connection carries the replies
+     * @param property the message property holding the correlation key, or JMSCorrelationID for the JMS header
+     * @param selector narrows down which messages are replies at all, eg "rhsm_qe='xunit_importer'" ("" for all)
+     * @param timer expires the waits whose reply never comes
+     */
+    public ReplyCorrelator(SubscriptionEngine engine, String property, String selector, HashedWheelTimer timer)
+            throws JMSException {
+        this.property = property;
+        this.timer = timer;
+        this.subscription = engine.subscribe(selector, this::onReply);
+    }
+
+    public ReplyCorrelator(SubscriptionEngine engine, String property, String selector) throws JMSException {
+        this(engine, property, selector, HashedWheelTimer.shared());
+    }
+
+    /**
+     * Waits for the reply whose correlation property equals key.  Call this before sending the request, or a fast
+     * reply may arrive before anyone is waiting for it
+     *
+     * @param key the value of the correlation property the reply will carry
+     * @param handler turns the reply into a MessageResult
+     * @param timeout milliseconds to wait before completing with a TIMED_OUT result
+     * @return a future of the handled reply
+     */
+    public <T> CompletableFuture<MessageResult<T>> await(String key, MessageHandler<T> handler, Long timeout) {
+        Pending<T> p = new Pending<>(handler);
+        if (this.pending.putIfAbsent(key, p) != null) {
+            p.future.completeExceptionally(new IllegalStateException("Already waiting on a reply for " + key));
+            return p.future;
+        }
+        HashedWheelTimer.Timeout expiry = this.timer.newTimeout(() -> this.expire(key, p, timeout), timeout,
+                TimeUnit.MILLISECONDS);
+        p.future.whenComplete((r, e) -> expiry.cancel());
+        return p.future;
+    }
+
+    /**
+     * Sends a request with the publisher and waits for its reply
+     *
+     * The correlation key is added to the request as the correlation property, so the replier can copy it over to its
+     * reply.  When correlating on JMSCorrelationID the replier is expected to know the key already
+     *
+     * The request goes out with sendAsync, ie through the publisher's pool, unless the publisher packs its messages in
+     * envelopes.  If the broker rejects it, the future completes exceptionally with a JMSException instead of waiting
+     * out the timeout
+     */
+    public <T> CompletableFuture<MessageResult<T>>
+    request(CIBusPublisher publisher, String body, JMSMessageOptions opts, String key, MessageHandler<T> handler,
+            Long timeout) {
+        CompletableFuture<MessageResult<T>> reply = this.await(key, handler, timeout);
+        // The caller may reuse opts for its next request while this one still waits in an envelope
+        JMSMessageOptions keyed = new JMSMessageOptions(opts);
+        if (!this.property.equals(CORRELATION_ID))
+            keyed.addProperty(this.property, key);
+        if (publisher.isEnveloped()) {
+            publisher.sendMessage(body, publisher.broker.getUrl(), keyed);
+            return reply;
+        }
+        publisher.sendAsync(body, keyed).whenComplete((sent, e) -> {
+            if (e != null)
+                this.fail(key, e);
+            else if (sent.getStatus() != MessageResult.Status.SUCCESS)
+                this.fail(key, new JMSException(String.format("Request %s was not sent: %s", key,
+                        sent.getErrorDetails())));
+        });
+        return reply;
+    }
+
+    /**
+     * @return number of requests still waiting on a reply
+     */
+    public Integer getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * @return number of replies that arrived with no one waiting on them
+     */
+    public long getUnmatchedCount() {
+        return this.unmatched.sum();
+    }
+
+    private void expire(String key, Pending<?> p, Long timeout) {
+        if (!this.pending.remove(key, p))
+            return;
+        p.timeout(String.format("No reply for %s within %d ms", key, timeout));
+    }
+
+    private void fail(String key, Throwable e) {
+        Pending<?> p = this.pending.remove(key);
+        if (p != null)
+            p.future.completeExceptionally(e);
+    }
+
+    private void onReply(Message msg) {
+        try {
+            String key = this.property.equals(CORRELATION_ID) ? msg.getJMSCorrelationID()
+                                                              : msg.getStringProperty(this.property);
+            Pending<?> p = key == null ? null : this.pending.remove(key);
+            if (p == null) {
+                this.unmatched.increment();
+                return;
+            }
+            p.resolve(msg);
+        } catch (JMSException e) {
+            logger.error(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        this.subscription.close();
+        this.pending.forEach((k, p) -> p.timeout("ReplyCorrelator was closed"));
+        this.pending.clear();
+    }
+
+    private static class Pending<T> {
+        final MessageHandler<T> handler;
+        final FieldSelector selector;
+        final CompletableFuture<MessageResult<T>> future = new CompletableFuture<>();
+
+        Pending(MessageHandler<T> handler) {
+            this.handler = handler;
+            this.selector = handler.fields().isEmpty() ? null : FieldSelector.compile(handler.fields());
+        }
+
+        void resolve(Message msg) {
+            try {
+                ObjectNode node = MessageConverter.toNode(msg, this.selector);
+                this.future.complete(this.handler.handle(node));
+            } catch (JMSException | RuntimeException e) {
+                MessageResult<T> result = new MessageResult<>();
+                result.setStatus(e instanceof JMSException ? MessageResult.Status.JMS_EXCEPTION
+                                                           : MessageResult.Status.ERROR);
+                result.setErrorDetails(e.getMessage());
+                this.future.complete(result);
+            }
+        }
+
+        void timeout(String details) {
+            this.future.complete(MessageResult.timedOut(details));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import io.reactivex.FlowableEmitter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands a listener's results to one Flowable subscriber.
+ *
+ * A blocking sink keeps its own count of how many results it may still emit.  That count is the subscriber's demand
+ * plus the buffer capacity in front of it.  When the count runs out, offer() waits on the calling thread (normally the
+ * JMS session thread) until the subscriber requests more.
+ */
+class ResultSink<T> {
+    private final Boolean blocking;
+    private volatile FlowableEmitter<MessageResult<T>> emitter;
+    private final AtomicLong credits;
+    private volatile Boolean done = false;
+
+    ResultSink(Boolean blocking, long initialCredits) {
+        this.blocking = blocking;
+        this.credits = new AtomicLong(initialCredits);
+    }
+
+    void attach(FlowableEmitter<MessageResult<T>> emitter) {
+        this.emitter = emitter.serialize();
+    }
+
+    void grant(long n) {
+        long c;
+        long next;
+        do {
+            c = this.credits.get();
+            if (c == Long.MAX_VALUE)
+                return;
+            // Demand is capped at Long.MAX_VALUE, which means unbounded
+            next = c + n < 0 ? Long.MAX_VALUE : c + n;
+        } while (!this.credits.compareAndSet(c, next));
+        this.wake();
+    }
+
+    /**
+     * Wakes up a thread blocked in offer, eg because the subscriber cancelled
+     */
+    synchronized void wake() {
+        this.notifyAll();
+    }
+
+    /**
+     * @return false if the result was not emitted because the subscriber is gone or the thread was interrupted
+     */
+    Boolean offer(MessageResult<T> result) {
+        FlowableEmitter<MessageResult<T>> e = this.emitter;
+        if (e == null || e.isCancelled())
+            return false;
+        if (this.blocking) {
+            synchronized (this) {
+                try {
+                    while (this.credits.get() == 0 && !e.isCancelled() && !this.done)
+                        this.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (e.isCancelled() || this.done)
+                    return false;
+                long c;
+                do {
+                    c = this.credits.get();
+                } while (c != Long.MAX_VALUE && !this.credits.compareAndSet(c, c - 1));
+            }
+        }
+        e.onNext(result);
+        return true;
+    }
+
+    void complete() {
+        this.done = true;
+        FlowableEmitter<MessageResult<T>> e = this.emitter;
+        if (e != null)
+            e.onComplete();
+        this.wake();
+    }
+}
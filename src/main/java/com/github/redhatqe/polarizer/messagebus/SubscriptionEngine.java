@@ -0,0 +1,213 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.github.redhatqe.polarizer.messagebus.config.Broker;
+import org.apache.activemq.ActiveMQMessageTransformation;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.filter.BooleanExpression;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.selector.SelectorParser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.jms.*;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Lets many logical subscriptions share one Connection.
+ *
+ * Instead of each selector costing its own connection, client ID and Consumer queue on the broker, the engine opens one
+ * Connection per broker url and one MessageConsumer per destination.  It then evaluates every registered JMS selector
+ * locally against each message's headers and properties.  A message is handed to every subscription whose selector
+ * matches, so the number of broker connections stays the same however many subscriptions are active.
+ *
+ * All subscriptions on a destination are served by that destination's single session thread, so their listeners
+ * should hand off any slow work (eg with a CIBusListener Dispatcher).
+ */
+public class SubscriptionEngine implements ICIBus, AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(SubscriptionEngine.class.getName());
+    private static final Map<List<Object>, SubscriptionEngine> engines = new ConcurrentHashMap<>();
+
+    private final Broker broker;
+    private final String clientID;
+    private final List<Object> key;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private Connection connection;
+    private volatile Boolean closed = false;
+
+    public SubscriptionEngine(Broker broker) {
+        this.broker = broker;
+        this.clientID = CIBusClient.POLARIZE_CLIENT_ID + "." + UUID.randomUUID();
+        this.key = broker.getConnectionKey(broker.getUrl());
+    }
+
+    /**
+     * Gets the shared engine for a broker, keyed by its url and connection settings (see Broker.getConnectionKey)
+     */
+    public static SubscriptionEngine forBroker(Broker broker) {
+        return engines.compute(broker.getConnectionKey(broker.getUrl()), (key, engine) -> {
+            if (engine != null && !engine.closed)
+                return engine;
+            return new SubscriptionEngine(broker);
+        });
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * @return the engine's own virtual topic queue, ie Consumer.CLIENT_ID.VirtualTopic.qe.ci.>
+     */
+    public String getDefaultDestination() {
+        return String.format("Consumer.%s.%s", this.clientID, CIBusClient.TOPIC);
+    }
+
+    /**
+     * @return number of active subscriptions across all destinations
+     */
+    public Integer getSubscriptionCount() {
+        return this.routes.values().stream().mapToInt(r -> r.subscriptions.size()).sum();
+    }
+
+    /**
+     * Registers a listener for the messages on a queue that match a selector
+     *
+     * @param destination name of the queue to consume from
+     * @param selector a JMS selector, or "" for every message
+     * @param listener called on the destination's session thread for every matching message
+     * @return a Subscription, which must be closed once it is no longer needed
+     * @throws InvalidSelectorException if the selector does not parse
+     */
+    public Subscription subscribe(String destination, String selector, MessageListener listener) throws JMSException {
+        BooleanExpression expr = (selector == null || selector.equals("")) ? null : SelectorParser.parse(selector);
+        Subscription sub = new Subscription(destination, selector, expr, listener);
+        synchronized (this) {
+            if (this.closed)
+                throw new javax.jms.IllegalStateException("SubscriptionEngine is closed");
+            Route route = this.routes.get(destination);
+            if (route == null) {
+                route = this.openRoute(destination);
+                this.routes.put(destination, route);
+            }
+            route.subscriptions.add(sub);
+        }
+        logger.info(String.format("Subscribed to %s with selector of %s", destination, selector));
+        return sub;
+    }
+
+    public Subscription subscribe(String selector, MessageListener listener) throws JMSException {
+        return this.subscribe(this.getDefaultDestination(), selector, listener);
+    }
+
+    private Route openRoute(String destination) throws JMSException {
+        if (this.connection == null) {
+            Connection conn = this.setupFactory(this.broker.getUrl(), this.broker).createConnection();
+            conn.setClientID(this.clientID);
+            conn.setExceptionListener(exc -> logger.error(exc.getMessage()));
+            conn.start();
+            this.connection = conn;
+        }
+        Session session = this.connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(session.createQueue(destination));
+        Route route = new Route(session, consumer);
+        consumer.setMessageListener(route::dispatch);
+        return route;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+            engines.remove(this.key, this);
+            this.routes.clear();
+            if (this.connection != null) {
+                try {
+                    this.connection.close();
+                } catch (JMSException e) {
+                    e.printStackTrace();
+                }
+                this.connection = null;
+            }
+        }
+    }
+
+    /**
+     * The one consumer for a destination and the subscriptions it fans out to
+     */
+    private static class Route {
+        final Session session;
+        final MessageConsumer consumer;
+        final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        // Only ever touched from the route's session thread
+        final MessageEvaluationContext context = new MessageEvaluationContext();
+
+        Route(Session session, MessageConsumer consumer) {
+            this.session = session;
+            this.consumer = consumer;
+        }
+
+        void dispatch(Message msg) {
+            ActiveMQMessage amq;
+            try {
+                amq = ActiveMQMessageTransformation.transformMessage(msg, null);
+            } catch (JMSException e) {
+                logger.error(e.getMessage());
+                return;
+            }
+            this.context.setMessageReference(amq);
+            try {
+                // One bad selector or listener must not keep the message from the other subscriptions
+                for (Subscription sub : this.subscriptions) {
+                    try {
+                        if (sub.matches(this.context))
+                            sub.listener.onMessage(amq);
+                    } catch (JMSException | RuntimeException e) {
+                        logger.error(String.format("Subscription for %s failed: %s", sub.selector, e.getMessage()));
+                    }
+                }
+            } finally {
+                this.context.clear();
+            }
+        }
+    }
+
+    /**
+     * One registered selector and its listener.  Closing it stops delivery to the listener
+     */
+    public class Subscription implements AutoCloseable {
+        private final String destination;
+        private final String selector;
+        private final BooleanExpression expression;
+        private final MessageListener listener;
+
+        Subscription(String destination, String selector, BooleanExpression expr, MessageListener listener) {
+            this.destination = destination;
+            this.selector = selector;
+            this.expression = expr;
+            this.listener = listener;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public String getSelector() {
+            return selector;
+        }
+
+        Boolean matches(MessageEvaluationContext ctx) throws JMSException {
+            return this.expression == null || this.expression.matches(ctx);
+        }
+
+        @Override
+        public void close() {
+            Route route = SubscriptionEngine.this.routes.get(this.destination);
+            if (route != null)
+                route.subscriptions.remove(this);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.redhatqe.polarizer.messagebus;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The reply the XUnit importer sends on the bus once an import is done.  Only the fields the handler needs are bound,
+ * with the rest of the reply skipped:
+ *
+ * <pre>
+ *   { "status": "passed", "testrun-url": "https://...",
+ *     "import-results": [ { "suite-name": "...", "status": "failed" } ],
+ *     "message": "..." }
+ * </pre>
+ *
+ * The ObjectReader is built once and shared, since it is immutable and thread safe.  Binding only throws for a body that
+ * is not JSON at all.  A reply missing the fields it needs is caught by check, without any exception.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class XUnitImportResult {
+    private static final ObjectReader reader = FieldSelector.mapper.readerFor(XUnitImportResult.class);
+
+    @JsonProperty
+    private String status;
+    @JsonProperty("testrun-url")
+    private String testrunUrl;
+    @JsonProperty
+    private String message;
+    @JsonProperty("import-results")
+    private List<SuiteResult> importResults;
+
+    public XUnitImportResult() {
+
+    }
+
+    public static XUnitImportResult read(String text) throws IOException {
+        return reader.readValue(text);
+    }
+
+    public static XUnitImportResult read(JsonParser parser) throws IOException {
+        return reader.readValue(parser);
+    }
+
+    public static XUnitImportResult read(JsonNode node) throws IOException {
+        return reader.readValue(node);
+    }
+
+    /**
+     * Works out the status of a reply.  SUCCESS and FAILED are for a well formed reply whose import passed or failed.
+     * EMPTY_MESSAGE is a reply with no status, or a failure that only carries a message.  WRONG_MESSAGE_FORMAT is a
+     * reply that is missing what its status needs: a passed reply with no testrun-url, or a failed one with neither
+     * import-results nor a message.
+     */
+    public MessageResult.Status check() {
+        if (this.status == null)
+            return this.testrunUrl == null && this.importResults == null && this.message == null
+                    ? MessageResult.Status.EMPTY_MESSAGE
+                    : MessageResult.Status.WRONG_MESSAGE_FORMAT;
+        if (this.isPassed())
+            return this.testrunUrl == null ? MessageResult.Status.WRONG_MESSAGE_FORMAT : MessageResult.Status.SUCCESS;
+        if (this.importResults != null)
+            return MessageResult.Status.FAILED;
+        return this.message == null ? MessageResult.Status.WRONG_MESSAGE_FORMAT : MessageResult.Status.EMPTY_MESSAGE;
+    }
+
+    public Boolean isPassed() {
+        return "passed".equals(this.status);
+    }
+
+    /**
+     * @return the names of the suites in import-results whose status is not passed
+     */
+    public List<String> getFailedSuites() {
+        List<String> suites = new ArrayList<>();
+        if (this.importResults == null)
+            return suites;
+        for (SuiteResult r : this.importResults) {
+            if (r != null && r.status != null && !r.isPassed() && r.suiteName != null)
+                suites.add(r.suiteName);
+        }
+        return suites;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getTestrunUrl() {
+        return testrunUrl;
+    }
+
+    public void setTestrunUrl(String testrunUrl) {
+        this.testrunUrl = testrunUrl;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public List<SuiteResult> getImportResults() {
+        return importResults;
+    }
+
+    public void setImportResults(List<SuiteResult> importResults) {
+        this.importResults = importResults;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class SuiteResult {
+        @JsonProperty
+        private String status;
+        @JsonProperty("suite-name")
+        private String suiteName;
+
+        public SuiteResult() {
+
+        }
+
+        public Boolean isPassed() {
+            return "passed".equals(this.status);
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public void setStatus(String status) {
+            this.status = status;
+        }
+
+        public String getSuiteName() {
+            return suiteName;
+        }
+
+        public void setSuiteName(String suiteName) {
+            this.suiteName = suiteName;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.redhatqe.polarizer.messagebus.config;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * How a CIBusListener acknowledges the messages it consumes.  In the broker-config.yml this is the optional ack section
+ * of a broker:
+ *
+ * <pre>
+ *   ack:
+ *     mode: batch            # auto, dups-ok, optimized, client or batch
+ *     batch-size: 100        # client and batch: acknowledge after this many messages...
+ *     batch-timeout: 1000    # ...or this many milliseconds, whichever comes first
+ * </pre>
+ *
+ * auto acknowledges every message as it is consumed.  dups-ok and optimized let the ActiveMQ client acknowledge lazily
+ * in batches, at the risk of a redelivery after a crash.  client and batch acknowledge batch-size messages at a time,
+ * and only if the handler succeeded on all of them.  Otherwise the batch is redelivered, so handlers must be idempotent.
+ * batch uses a transacted session, client uses Session.CLIENT_ACKNOWLEDGE and recover().
+ */
+public class AckOpts {
+    public enum Mode {
+        AUTO("auto"),
+        DUPS_OK("dups-ok"),
+        OPTIMIZED("optimized"),
+        CLIENT("client"),
+        BATCH("batch");
+
+        private final String name;
+
+        Mode(String name) {
+            this.name = name;
+        }
+
+        @JsonValue
+        public String getName() {
+            return name;
+        }
+
+        @JsonCreator
+        public static Mode fromName(String name) {
+            for (Mode m : values()) {
+                if (m.name.equalsIgnoreCase(name) || m.name().equalsIgnoreCase(name))
+                    return m;
+            }
+            throw new IllegalArgumentException("Unknown ack mode " + name);
+        }
+    }
+
+    @JsonProperty
+    private Mode mode = Mode.AUTO;
+    @JsonProperty("batch-size")
+    private Integer batchSize = 100;
+    @JsonProperty("batch-timeout")
+    private Long batchTimeout = 1000L;
+
+    public AckOpts() {
+
+    }
+
+    public AckOpts(Mode mode, Integer batchSize, Long batchTimeout) {
+        this.mode = mode;
+        this.batchSize = batchSize;
+        this.batchTimeout = batchTimeout;
+    }
+
+    public AckOpts(AckOpts orig) {
+        this(orig.mode, orig.batchSize, orig.batchTimeout);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Integer getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Long getBatchTimeout() {
+        return batchTimeout;
+    }
+
+    public void setBatchTimeout(Long batchTimeout) {
+        this.batchTimeout = batchTimeout;
+    }
+
+    /**
+     * @return true if acknowledging depends on the handler's results, so messages must be handled on the session thread
+     */
+    public Boolean isBatched() {
+        return this.mode == Mode.CLIENT || this.mode == Mode.BATCH;
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.redhatqe.polarizer.messagebus.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * How CIBusPublisher.sendBatch groups messages into transactions.  In the broker-config.yml this is the optional batch
+ * section of a broker:
+ *
+ * <pre>
+ *   batch:
+ *     size: 100            # commit after this many messages...
+ *     interval: 1000       # ...or once the open transaction is this many ms old, whichever comes first
+ *     retries: 3           # times a batch that failed to commit is sent again before it is reported as failed
+ *     retry-delay: 1000    # ms to wait before the first retry, doubled for each one after it
+ * </pre>
+ *
+ * The broker only has to write a transaction to its store once at commit, rather than once per persistent message, so
+ * larger batches send faster.  The cost is that a failed batch has to be sent again as a whole.
+ */
+public class BatchOpts {
+    @JsonProperty
+    private Integer size = 100;
+    @JsonProperty
+    private Long interval = 1000L;
+    @JsonProperty
+    private Integer retries = 3;
+    @JsonProperty("retry-delay")
+    private Long retryDelay = 1000L;
+
+    public BatchOpts() {
+
+    }
+
+    public BatchOpts(Integer size, Long interval, Integer retries) {
+        this.size = size;
+        this.interval = interval;
+        this.retries = retries;
+    }
+
+    public BatchOpts(BatchOpts orig) {
+        this(orig.size, orig.interval, orig.retries);
+        this.retryDelay = orig.retryDelay;
+    }
+
+    public Integer getSize() {
+        return size;
+    }
+
+    public void setSize(Integer size) {
+        this.size = size;
+    }
+
+    public Long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Long interval) {
+        this.interval = interval;
+    }
+
+    public Integer getRetries() {
+        return retries;
+    }
+
+    public void setRetries(Integer retries) {
+        this.retries = retries;
+    }
+
+    public Long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(Long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+}
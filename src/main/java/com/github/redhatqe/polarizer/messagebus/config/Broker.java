@@ -5,6 +5,9 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.github.redhatqe.polarizer.reporter.configuration.data.MessageOpts;
 import com.github.redhatqe.polarizer.reporter.configuration.data.TLSClient;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Created by stoner on 5/17/17.
  */
@@ -19,6 +22,20 @@ public class Broker {
     MessageOpts messages;
     @JsonProperty
     TLSClient tls;
+    @JsonProperty
+    PoolOpts pool;
+    @JsonProperty
+    AckOpts ack;
+    @JsonProperty
+    PrefetchOpts prefetch;
+    @JsonProperty
+    BatchOpts batch;
+    @JsonProperty
+    EnvelopeOpts envelope;
+    @JsonProperty
+    CompressionOpts compression;
+    @JsonProperty
+    Format format;
 
     public Broker(String url, String u, String pw, Long to, Integer nummsgs, TLSClient tls) {
         this.url = url;
@@ -46,6 +63,13 @@ public class Broker {
         this.password = orig.getPassword();
         this.messages = new MessageOpts(orig.getMessageTimeout(), orig.getMessageMax());
         this.tls = new TLSClient(tls);
+        this.pool = new PoolOpts(orig.getPool());
+        this.ack = new AckOpts(orig.getAck());
+        this.prefetch = new PrefetchOpts(orig.getPrefetch());
+        this.batch = new BatchOpts(orig.getBatch());
+        this.envelope = new EnvelopeOpts(orig.getEnvelope());
+        this.compression = new CompressionOpts(orig.getCompression());
+        this.format = orig.getFormat();
     }
 
     public String getUrl() {
@@ -76,6 +100,90 @@ public class Broker {
 
     public void setMessages(MessageOpts opts) { this.messages = opts; }
 
+    /**
+     * The pool section is optional, so older configurations without one get the defaults
+     */
+    public PoolOpts getPool() {
+        if (this.pool == null)
+            this.pool = new PoolOpts();
+        return this.pool;
+    }
+
+    public void setPool(PoolOpts pool) { this.pool = pool; }
+
+    /**
+     * The ack section is optional too, and defaults to auto acknowledge
+     */
+    public AckOpts getAck() {
+        if (this.ack == null)
+            this.ack = new AckOpts();
+        return this.ack;
+    }
+
+    public void setAck(AckOpts ack) { this.ack = ack; }
+
+    /**
+     * Without a prefetch section, ActiveMQ's own defaults apply
+     */
+    public PrefetchOpts getPrefetch() {
+        if (this.prefetch == null)
+            this.prefetch = new PrefetchOpts();
+        return this.prefetch;
+    }
+
+    public void setPrefetch(PrefetchOpts prefetch) { this.prefetch = prefetch; }
+
+    public BatchOpts getBatch() {
+        if (this.batch == null)
+            this.batch = new BatchOpts();
+        return this.batch;
+    }
+
+    public void setBatch(BatchOpts batch) { this.batch = batch; }
+
+    public EnvelopeOpts getEnvelope() {
+        if (this.envelope == null)
+            this.envelope = new EnvelopeOpts();
+        return this.envelope;
+    }
+
+    public void setEnvelope(EnvelopeOpts envelope) { this.envelope = envelope; }
+
+    /**
+     * Without a compression section, bodies are sent as they are
+     */
+    public CompressionOpts getCompression() {
+        if (this.compression == null)
+            this.compression = new CompressionOpts();
+        return this.compression;
+    }
+
+    public void setCompression(CompressionOpts compression) { this.compression = compression; }
+
+    public Format getFormat() {
+        return this.format == null ? Format.JSON : this.format;
+    }
+
+    public void setFormat(Format format) { this.format = format; }
+
+    /**
+     * Identifies a Connection made to url with this broker's settings.  Two brokers with the same key would set up the
+     * same ConnectionFactory, so they can share a Connection; ones that differ in credentials, keystores, prefetch or
+     * pool settings get their own
+     *
+     * @param url the url actually connected to, which may differ from getUrl()
+     */
+    @JsonIgnore
+    public List<Object> getConnectionKey(String url) {
+        PoolOpts p = this.getPool();
+        PrefetchOpts pf = this.getPrefetch();
+        TLSClient t = this.tls == null ? new TLSClient() : this.tls;
+        return Arrays.asList(url, this.user, this.password,
+                t.getKeystorePath(), t.getKeystorePassword(), t.getKeystoreKeyPassword(),
+                t.getTruststorePath(), t.getTruststorePassword(),
+                pf.getQueue(), pf.getTopic(), p.getSize(), p.getIdleTimeout(), p.getWindow());
+    }
+
     @JsonIgnore
     public Long getMessageTimeout() { return this.messages.getTimeout(); }
 
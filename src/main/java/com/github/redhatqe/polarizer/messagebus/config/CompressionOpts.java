@@ -0,0 +1,101 @@
+package com.github.redhatqe.polarizer.messagebus.config;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.util.zip.Deflater;
+
+/**
+ * Whether, and how, a CIBusPublisher compresses large message bodies.  In the broker-config.yml this is the optional
+ * compression section of a broker:
+ *
+ * <pre>
+ *   compression:
+ *     codec: deflate         # none, gzip or deflate
+ *     threshold: 65536       # only compress bodies of at least this many chars
+ *     level: 1               # 1 (fastest) to 9 (smallest).  Defaults to 1 for deflate and 6 for gzip
+ * </pre>
+ *
+ * A compressed body is sent as a BytesMessage with a content_encoding property naming the codec.  Listeners decompress
+ * such messages whatever their own compression setting is, so the publishers can be switched over first.
+ */
+public class CompressionOpts {
+    public enum Codec {
+        NONE("none", Deflater.NO_COMPRESSION),
+        GZIP("gzip", Deflater.DEFAULT_COMPRESSION),
+        DEFLATE("deflate", Deflater.BEST_SPEED);
+
+        private final String name;
+        private final Integer level;
+
+        Codec(String name, Integer level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        @JsonValue
+        public String getName() {
+            return name;
+        }
+
+        /** @return the compression level used when none is configured */
+        public Integer getDefaultLevel() {
+            return level;
+        }
+
+        @JsonCreator
+        public static Codec fromName(String name) {
+            for (Codec c : values()) {
+                if (c.name.equalsIgnoreCase(name) || c.name().equalsIgnoreCase(name))
+                    return c;
+            }
+            throw new IllegalArgumentException("Unknown compression codec " + name);
+        }
+    }
+
+    @JsonProperty
+    private Codec codec = Codec.NONE;
+    @JsonProperty
+    private Integer threshold = 65536;
+    @JsonProperty
+    private Integer level;
+
+    public CompressionOpts() {
+
+    }
+
+    public CompressionOpts(Codec codec, Integer threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    public CompressionOpts(CompressionOpts orig) {
+        this(orig.codec, orig.threshold);
+        this.level = orig.level;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    public Integer getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(Integer threshold) {
+        this.threshold = threshold;
+    }
+
+    public Integer getLevel() {
+        return level == null ? this.codec.getDefaultLevel() : level;
+    }
+
+    public void setLevel(Integer level) {
+        this.level = level;
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.redhatqe.polarizer.messagebus.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Settings for packing small messages into envelopes.  In the broker-config.yml this is the optional envelope section
+ * of a broker:
+ *
+ * <pre>
+ *   envelope:
+ *     enabled: true
+ *     linger: 10             # ms a message may wait for others to share its envelope
+ *     max-messages: 100      # send the envelope once it holds this many messages...
+ *     max-bytes: 262144      # ...or this many chars of bodies
+ * </pre>
+ *
+ * Every message costs the broker about the same no matter how small it is, so for tiny status messages most of the
+ * cost is overhead.  An envelope pays it once for many messages, at the price of up to linger ms of extra latency.
+ * A message sent while the publisher has been idle for longer than linger goes out on its own straight away.
+ */
+public class EnvelopeOpts {
+    @JsonProperty
+    private Boolean enabled = false;
+    @JsonProperty
+    private Long linger = 10L;
+    @JsonProperty("max-messages")
+    private Integer maxMessages = 100;
+    @JsonProperty("max-bytes")
+    private Integer maxBytes = 262144;
+
+    public EnvelopeOpts() {
+
+    }
+
+    public EnvelopeOpts(Boolean enabled, Long linger, Integer maxMessages, Integer maxBytes) {
+        this.enabled = enabled;
+        this.linger = linger;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    public EnvelopeOpts(EnvelopeOpts orig) {
+        this(orig.enabled, orig.linger, orig.maxMessages, orig.maxBytes);
+    }
+
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Long getLinger() {
+        return linger;
+    }
+
+    public void setLinger(Long linger) {
+        this.linger = linger;
+    }
+
+    public Integer getMaxMessages() {
+        return maxMessages;
+    }
+
+    public void setMaxMessages(Integer maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    public Integer getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(Integer maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.redhatqe.polarizer.messagebus.config;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * The encoding a CIBusPublisher writes message bodies in.  In the broker-config.yml this is the optional format
+ * setting of a broker:
+ *
+ * <pre>
+ *   format: smile            # json (the default), smile or cbor
+ * </pre>
+ *
+ * smile and cbor are binary forms of JSON, which are smaller and quicker to parse.  They are sent as a BytesMessage with
+ * a content_type property, and listeners pick the parser from that property whatever their own format is.
+ */
+public enum Format {
+    JSON("json", "application/json"),
+    SMILE("smile", "application/x-jackson-smile"),
+    CBOR("cbor", "application/cbor");
+
+    private final String name;
+    private final String contentType;
+
+    Format(String name, String contentType) {
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    @JsonValue
+    public String getName() {
+        return name;
+    }
+
+    /** @return the value of the content_type property */
+    public String getContentType() {
+        return contentType;
+    }
+
+    @JsonCreator
+    public static Format fromName(String name) {
+        for (Format f : values()) {
+            if (f.name.equalsIgnoreCase(name) || f.name().equalsIgnoreCase(name))
+                return f;
+        }
+        throw new IllegalArgumentException("Unknown format " + name);
+    }
+
+    /**
+     * @return the format with the given content_type, or JSON if there is none or it is unknown
+     */
+    public static Format fromContentType(String contentType) {
+        for (Format f : values()) {
+            if (f.contentType.equalsIgnoreCase(contentType))
+                return f;
+        }
+        return JSON;
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.redhatqe.polarizer.messagebus.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Settings for the pooled publisher mode.  In the broker-config.yml this is the optional pool section of a broker:
+ *
+ * <pre>
+ *   pool:
+ *     enabled: true
+ *     size: 4                # max number of Sessions (and cached producers) kept per broker url
+ *     idle-timeout: 300000   # milliseconds a Session may sit unused before it is closed
+ *     window: 1048576        # bytes of sends that may be waiting on the broker, per broker url
+ * </pre>
+ *
+ * The window applies whether or not the pool is enabled.  It is the ActiveMQ producer window for fire-and-forget sends,
+ * and it also bounds the sends a CIBusPublisher.sendAsync has in flight, so a fast sender blocks instead of queueing
+ * an unbounded number of messages in front of a slow broker.
+ */
+public class PoolOpts {
+    @JsonProperty
+    private Boolean enabled = false;
+    @JsonProperty
+    private Integer size = 4;
+    @JsonProperty("idle-timeout")
+    private Long idleTimeout = 300000L;
+    @JsonProperty
+    private Integer window = 1048576;
+
+    public PoolOpts() {
+
+    }
+
+    public PoolOpts(Boolean enabled, Integer size, Long idleTimeout) {
+        this.enabled = enabled;
+        this.size = size;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public PoolOpts(PoolOpts orig) {
+        this(orig.enabled, orig.size, orig.idleTimeout);
+        this.window = orig.window;
+    }
+
+    public Boolean getEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Integer getSize() {
+        return size;
+    }
+
+    public void setSize(Integer size) {
+        this.size = size;
+    }
+
+    public Long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(Long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public Integer getWindow() {
+        return window;
+    }
+
+    public void setWindow(Integer window) {
+        this.window = window;
+    }
+}
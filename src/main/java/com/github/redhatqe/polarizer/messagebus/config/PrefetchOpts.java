@@ -0,0 +1,112 @@
+package com.github.redhatqe.polarizer.messagebus.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * How many messages the broker may push to a consumer before the consumer acknowledges them.  In the broker-config.yml
+ * this is the optional prefetch section of a broker:
+ *
+ * <pre>
+ *   prefetch:
+ *     queue: 1000          # prefetch for queue consumers (ActiveMQ's default)
+ *     topic: 32766         # prefetch for non-durable topic consumers (ActiveMQ's default)
+ *     adaptive: true       # retune queue consumers from the measured handler time (auto ack mode only)
+ *     min: 1
+ *     max: 1000
+ *     buffer-time: 100     # adaptive: prefetch enough messages for this many ms of handler work
+ *     interval: 1000       # adaptive: ms between adjustments
+ * </pre>
+ *
+ * A large prefetch keeps a fast handler busy, but with a slow handler it parks messages behind the one being handled
+ * while other consumers sit idle.
+ */
+public class PrefetchOpts {
+    @JsonProperty
+    private Integer queue = 1000;
+    @JsonProperty
+    private Integer topic = 32766;
+    @JsonProperty
+    private Boolean adaptive = false;
+    @JsonProperty
+    private Integer min = 1;
+    @JsonProperty
+    private Integer max = 1000;
+    @JsonProperty("buffer-time")
+    private Long bufferTime = 100L;
+    @JsonProperty
+    private Long interval = 1000L;
+
+    public PrefetchOpts() {
+
+    }
+
+    public PrefetchOpts(Integer queue, Integer topic) {
+        this.queue = queue;
+        this.topic = topic;
+    }
+
+    public PrefetchOpts(PrefetchOpts orig) {
+        this(orig.queue, orig.topic);
+        this.adaptive = orig.adaptive;
+        this.min = orig.min;
+        this.max = orig.max;
+        this.bufferTime = orig.bufferTime;
+        this.interval = orig.interval;
+    }
+
+    public Integer getQueue() {
+        return queue;
+    }
+
+    public void setQueue(Integer queue) {
+        this.queue = queue;
+    }
+
+    public Integer getTopic() {
+        return topic;
+    }
+
+    public void setTopic(Integer topic) {
+        this.topic = topic;
+    }
+
+    public Boolean getAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(Boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public Integer getMin() {
+        return min;
+    }
+
+    public void setMin(Integer min) {
+        this.min = min;
+    }
+
+    public Integer getMax() {
+        return max;
+    }
+
+    public void setMax(Integer max) {
+        this.max = max;
+    }
+
+    public Long getBufferTime() {
+        return bufferTime;
+    }
+
+    public void setBufferTime(Long bufferTime) {
+        this.bufferTime = bufferTime;
+    }
+
+    public Long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Long interval) {
+        this.interval = interval;
+    }
+}
@@ -0,0 +1,290 @@
+package com.github.redhatqe.polarizer.messagebus.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timer for large numbers of timeouts that rarely fire, such as waits on a reply that usually arrives in time.
+ *
+ * Time is cut into ticks, and the wheel is a ring of buckets, one per tick.  A timeout goes into the bucket its deadline
+ * falls in, along with how many full turns of the wheel remain before it is due.  One worker thread moves a cursor
+ * around the wheel once per tick and only looks at the bucket under it.  Adding and cancelling a timeout are both O(1)
+ * and never block, and the cost of a tick doesn't depend on how many timeouts are pending in other buckets.
+ *
+ * The price is precision:  a timeout fires up to one tick late.  For message waits that are counted in seconds, a tick
+ * of 10 or so milliseconds is plenty.
+ *
+ * Tasks run on the worker thread, so they should be short (eg completing a CompletableFuture).
+ */
+public class HashedWheelTimer {
+    private static final Logger logger = LogManager.getLogger(HashedWheelTimer.class.getName());
+    private static final AtomicInteger instances = new AtomicInteger(0);
+    private static volatile HashedWheelTimer shared;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket[] wheel;
+    // Other threads only ever touch these two queues.  The buckets belong to the worker thread alone
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong(0);
+    private final Thread worker;
+    private volatile long startTime = 0;
+    private volatile Boolean stopped = false;
+    private long tick = 0;
+
+    /**
+     * @param tickDuration how much time each bucket covers
+     * @param unit unit of tickDuration
+     * @param ticksPerWheel number of buckets, rounded up to a power of 2
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, Integer ticksPerWheel) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0)
+            throw new IllegalArgumentException("tickDuration and ticksPerWheel must be greater than 0");
+        int size = 1;
+        while (size < ticksPerWheel)
+            size <<= 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            this.wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.worker = new Thread(this::run, "polarizer-wheel-timer-" + instances.incrementAndGet());
+        this.worker.setDaemon(true);
+    }
+
+    public HashedWheelTimer() {
+        this(10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @return the timer shared by the listeners and correlators in this JVM
+     */
+    public static HashedWheelTimer shared() {
+        if (shared == null) {
+            synchronized (HashedWheelTimer.class) {
+                if (shared == null)
+                    shared = new HashedWheelTimer();
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Schedules task to run once delay has passed
+     *
+     * @param task what to run on expiry.  It runs on the timer's thread
+     * @param delay how long to wait
+     * @param unit unit of delay
+     * @return a Timeout which can be cancelled
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (this.stopped)
+            throw new IllegalStateException("HashedWheelTimer has been stopped");
+        this.start();
+        long deadline = System.nanoTime() - this.startTime + unit.toNanos(delay);
+        Timeout timeout = new Timeout(this, task, deadline);
+        this.pending.incrementAndGet();
+        this.added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return number of timeouts that have neither expired nor been cancelled
+     */
+    public long getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * Stops the worker thread.  Timeouts that have not expired yet are dropped without running
+     */
+    public void stop() {
+        this.stopped = true;
+        this.worker.interrupt();
+    }
+
+    private void start() {
+        if (this.startTime != 0)
+            return;
+        synchronized (this) {
+            if (this.startTime == 0) {
+                // 0 means not started, so make sure a start time that happens to be 0 doesn't look like one
+                long now = System.nanoTime();
+                this.startTime = now == 0 ? 1 : now;
+                this.worker.start();
+            }
+        }
+    }
+
+    private void run() {
+        while (!this.stopped) {
+            long deadline = this.waitForNextTick();
+            if (deadline < 0)
+                break;
+            this.removeCancelled();
+            this.transferAdded();
+            this.wheel[(int) (this.tick & this.mask)].expire(deadline);
+            this.tick++;
+        }
+        logger.debug(String.format("%s stopped", this.worker.getName()));
+    }
+
+    /**
+     * Sleeps until the end of the current tick
+     *
+     * @return time since startTime at the end of the tick, or -1 if the timer was stopped while sleeping
+     */
+    private long waitForNextTick() {
+        long deadline = this.tickNanos * (this.tick + 1);
+        while (true) {
+            long now = System.nanoTime() - this.startTime;
+            long sleep = deadline - now;
+            if (sleep <= 0)
+                return now;
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            } catch (InterruptedException e) {
+                if (this.stopped)
+                    return -1;
+            }
+        }
+    }
+
+    private void transferAdded() {
+        // Bound the work done per tick, so a burst of new timeouts can't starve expiry
+        for (int i = 0; i < 100000; i++) {
+            Timeout timeout = this.added.poll();
+            if (timeout == null)
+                return;
+            if (timeout.state.get() != Timeout.WAITING)
+                continue;
+            long ticks = timeout.deadline / this.tickNanos;
+            timeout.rounds = (ticks - this.tick) / this.wheel.length;
+            // A deadline that has already passed goes into the current bucket, so it fires on this tick
+            long slot = Math.max(ticks, this.tick);
+            this.wheel[(int) (slot & this.mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = this.cancelled.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * A handle on a scheduled task
+     */
+    public static class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // The fields below are only used by the worker thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it hasn't run yet
+         *
+         * @return true if this call cancelled it
+         */
+        public Boolean cancel() {
+            if (!this.state.compareAndSet(WAITING, CANCELLED))
+                return false;
+            this.timer.pending.decrementAndGet();
+            this.timer.cancelled.add(this);
+            return true;
+        }
+
+        public Boolean isCancelled() {
+            return this.state.get() == CANCELLED;
+        }
+
+        public Boolean isExpired() {
+            return this.state.get() == EXPIRED;
+        }
+
+        void expire() {
+            if (!this.state.compareAndSet(WAITING, EXPIRED))
+                return;
+            this.timer.pending.decrementAndGet();
+            try {
+                this.task.run();
+            } catch (RuntimeException e) {
+                logger.error(String.format("Timeout task failed: %s", e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of Timeouts, so that any one of them can be unlinked in O(1)
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (this.head == null)
+                this.head = this.tail = timeout;
+            else {
+                this.tail.next = timeout;
+                timeout.prev = this.tail;
+                this.tail = timeout;
+            }
+        }
+
+        void expire(long now) {
+            Timeout timeout = this.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.isCancelled())
+                    this.remove(timeout);
+                else if (timeout.rounds > 0)
+                    timeout.rounds--;
+                else if (timeout.deadline <= now) {
+                    this.remove(timeout);
+                    timeout.expire();
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this)
+                return;
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                this.head = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            else
+                this.tail = timeout.prev;
+            timeout.next = timeout.prev = null;
+            timeout.bucket = null;
+        }
+    }
+}